@@ -4,35 +4,50 @@ import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
 import java.security.InvalidKeyException;
 import java.security.Key;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
+import java.security.interfaces.RSAKey;
 
-import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Asymmetric (public key) encryption.
- * 
+ * <p>
+ * The ciphers for each key and mode are initialized once and pooled, so an instance can be shared
+ * by many threads without any per call set up cost. Set the keys before sharing the instance.
  */
 public class AsymmetricCrypto {
 
     private static final Logger LOG = LoggerFactory.getLogger( AsymmetricCrypto.class );
 
+    public static final int KEY_ID_BYTES = 8;
+
+    /**
+     * The default number of idle ciphers kept per key and mode.
+     */
+    public static final int DEFAULT_MAX_IDLE_CIPHERS = CipherPool.MAX_IDLE;
+
     private PublicKey publicKey;
     private PrivateKey privateKey;
     private int keySizeBytes;
+    private byte[] keyId;
+    private CipherPool publicEncryptPool;
+    private CipherPool publicDecryptPool;
+    private CipherPool privateEncryptPool;
+    private CipherPool privateDecryptPool;
+    private int maxIdleCiphers = DEFAULT_MAX_IDLE_CIPHERS;
 
     /**
      * Default public constructor.
@@ -62,9 +77,8 @@ public class AsymmetricCrypto {
      *            The password for accessing the private key alias in the <tt>keystore</tt>.
      */
     public AsymmetricCrypto( KeyStore keystore, KeyStore certstore, String alias, String aliasPassword ) {
-        publicKey = loadPublicKey( certstore, alias );
-        privateKey = loadPrivateKey( keystore, alias, aliasPassword );
-        keySizeBytes = calculateKeySizeInBytes();
+        setPublicKey( loadPublicKey( certstore, alias ) );
+        setPrivateKey( loadPrivateKey( keystore, alias, aliasPassword ) );
     }
 
     /**
@@ -88,9 +102,8 @@ public class AsymmetricCrypto {
      */
     public AsymmetricCrypto( InputStream keystoreStream, InputStream certstoreStream, String storePassword,
                              String alias, String aliasPassword ) {
-        publicKey = loadPublicKey( certstoreStream, storePassword, alias );
-        privateKey = loadPrivateKey( keystoreStream, storePassword, alias, aliasPassword );
-        keySizeBytes = calculateKeySizeInBytes();
+        setPublicKey( loadPublicKey( certstoreStream, storePassword, alias ) );
+        setPrivateKey( loadPrivateKey( keystoreStream, storePassword, alias, aliasPassword ) );
     }
 
     public PublicKey getPublicKey() {
@@ -99,7 +112,10 @@ public class AsymmetricCrypto {
 
     public void setPublicKey( PublicKey key ) {
         publicKey = key;
+        publicEncryptPool = createCipherPool( key, Cipher.ENCRYPT_MODE );
+        publicDecryptPool = createCipherPool( key, Cipher.DECRYPT_MODE );
         keySizeBytes = calculateKeySizeInBytes();
+        keyId = calculateKeyId();
     }
 
     public PrivateKey getPrivateKey() {
@@ -108,7 +124,32 @@ public class AsymmetricCrypto {
 
     public void setPrivateKey( PrivateKey key ) {
         privateKey = key;
+        privateEncryptPool = createCipherPool( key, Cipher.ENCRYPT_MODE );
+        privateDecryptPool = createCipherPool( key, Cipher.DECRYPT_MODE );
         keySizeBytes = calculateKeySizeInBytes();
+        keyId = calculateKeyId();
+    }
+
+    public int getMaxIdleCiphers() {
+        return maxIdleCiphers;
+    }
+
+    /**
+     * Set the number of idle ciphers kept for each key and mode, i.e. up to four times this number
+     * in total. A lower number saves memory for instances that are not used by many threads at the
+     * same time, idle ciphers above the new number are dropped.
+     */
+    public void setMaxIdleCiphers( int maxIdleCiphers ) {
+        if ( maxIdleCiphers < 0 ) {
+            throw new IllegalArgumentException( "The number of idle ciphers must not be negative: " + maxIdleCiphers );
+        }
+        this.maxIdleCiphers = maxIdleCiphers;
+        for ( CipherPool pool : new CipherPool[] { publicEncryptPool, publicDecryptPool, privateEncryptPool,
+                                                  privateDecryptPool } ) {
+            if ( pool != null ) {
+                pool.setMaxIdle( maxIdleCiphers );
+            }
+        }
     }
 
     /**
@@ -124,24 +165,38 @@ public class AsymmetricCrypto {
         return keySizeBytes;
     }
 
+    /**
+     * Get a short identifier of the key pair, the first {@link #KEY_ID_BYTES} bytes of the SHA-256
+     * digest of the RSA modulus. As the public and the private key share the modulus, the
+     * identifier is the same whichever of the two keys is set.
+     * <p>
+     * For keys other than RSA keys the digest is taken over the encoded public key, or the encoded
+     * private key if there is no public key.
+     * 
+     * @return The key identifier, or <tt>null</tt> if no key is set.
+     */
+    public byte[] getKeyId() {
+        return keyId == null ? null : keyId.clone();
+    }
+
     public byte[] encryptWithPublicKey( byte[] data )
             throws CryptoException {
-        return crypt( data, publicKey, Cipher.ENCRYPT_MODE );
+        return crypt( data, publicEncryptPool );
     }
 
     public byte[] encryptWithPrivateKey( byte[] data )
             throws CryptoException {
-        return crypt( data, privateKey, Cipher.ENCRYPT_MODE );
+        return crypt( data, privateEncryptPool );
     }
 
     public byte[] decryptWithPrivateKey( byte[] data )
             throws CryptoException {
-        return crypt( data, privateKey, Cipher.DECRYPT_MODE );
+        return crypt( data, privateDecryptPool );
     }
 
     public byte[] decryptWithPublicKey( byte[] data )
             throws CryptoException {
-        return crypt( data, publicKey, Cipher.DECRYPT_MODE );
+        return crypt( data, publicDecryptPool );
     }
 
     /**
@@ -248,37 +303,57 @@ public class AsymmetricCrypto {
         return null;
     }
 
-    private byte[] crypt( byte[] data, Key key, int mode )
+    private CipherPool createCipherPool( Key key, int mode ) {
+        if ( key == null ) {
+            return null;
+        }
+        return new CipherPool( key.getAlgorithm(), key, mode, maxIdleCiphers );
+    }
+
+    private byte[] crypt( byte[] data, CipherPool pool )
             throws CryptoException {
-        byte[] result = null;
+        if ( pool == null ) {
+            throw new CryptoException( "The key for this operation has not been set." );
+        }
+        return pool.doFinal( data, 0, data.length );
+    }
 
+    private byte[] calculateKeyId() {
+        Key key = publicKey != null ? publicKey : privateKey;
+        if ( key == null ) {
+            return null;
+        }
+        byte[] material;
+        if ( key instanceof RSAKey ) {
+            material = ( (RSAKey) key ).getModulus().toByteArray();
+        } else {
+            material = key.getEncoded();
+        }
         try {
-            Cipher aesCipher = Cipher.getInstance( key.getAlgorithm() );
-            // Initialize the Cipher for the required mode.
-            aesCipher.init( mode, key );
-            // Do the encryption/decryption.
-            result = aesCipher.doFinal( data );
+            byte[] digest = MessageDigest.getInstance( "SHA-256" ).digest( material );
+            byte[] id = new byte[KEY_ID_BYTES];
+            System.arraycopy( digest, 0, id, 0, KEY_ID_BYTES );
+            return id;
         } catch ( NoSuchAlgorithmException e ) {
-            throw new CryptoException( e );
-        } catch ( NoSuchPaddingException e ) {
-            throw new CryptoException( e );
-        } catch ( InvalidKeyException e ) {
-            throw new CryptoException( e );
-        } catch ( IllegalBlockSizeException e ) {
-            throw new CryptoException( e );
-        } catch ( BadPaddingException e ) {
-            throw new CryptoException( e );
+            // SHA-256 is always available.
+            LOG.warn( "Problem calculating the key id!", e );
+            return null;
         }
-
-        return result;
     }
 
     private int calculateKeySizeInBytes() {
+        Key key = publicKey != null ? publicKey : privateKey;
+        if ( key instanceof RSAKey ) {
+            // The encrypted data is always as long as the modulus.
+            BigInteger modulus = ( (RSAKey) key ).getModulus();
+            return ( modulus.bitLength() + 7 ) / 8;
+        }
+        // Other kinds of keys: find out by encrypting something.
         try {
             if ( publicKey != null ) {
-                return crypt( "x".getBytes( "UTF-8" ), publicKey, Cipher.ENCRYPT_MODE ).length;
+                return crypt( "x".getBytes( "UTF-8" ), publicEncryptPool ).length;
             } else if ( privateKey != null ) {
-                return crypt( "x".getBytes( "UTF-8" ), privateKey, Cipher.ENCRYPT_MODE ).length;
+                return crypt( "x".getBytes( "UTF-8" ), privateEncryptPool ).length;
             }
         } catch ( UnsupportedEncodingException e ) {
             // Ignore as this should never happen.
@@ -0,0 +1,36 @@
+package org.cujau.crypto;
+
+/**
+ * The result for one item of a batch of the {@link HybridCrypto} batch methods: either the
+ * encrypted or decrypted data, or the exception that made the item fail.
+ *
+ * @see HybridCrypto#decryptAllWithPrivateKey(java.util.List)
+ */
+public class BatchResult {
+
+    private final byte[] data;
+    private final CryptoException exception;
+
+    BatchResult( byte[] data, CryptoException exception ) {
+        this.data = data;
+        this.exception = exception;
+    }
+
+    public boolean isSuccess() {
+        return exception == null;
+    }
+
+    /**
+     * @return The encrypted or decrypted data, or <tt>null</tt> if the item failed.
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * @return The reason the item failed, or <tt>null</tt> if it succeeded.
+     */
+    public CryptoException getException() {
+        return exception;
+    }
+}
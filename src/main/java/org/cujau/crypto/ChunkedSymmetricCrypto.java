@@ -0,0 +1,609 @@
+package org.cujau.crypto;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * Symmetric encryption of large payloads, split into fixed size chunks that are encrypted and
+ * decrypted in parallel.
+ * <p>
+ * CBC encryption of a single stream is sequential, so this class uses its own segmented format:
+ *
+ * <pre>
+ * 'C' 'J' 'C' | version (1 byte) | chunk size (4 bytes) | data length (8 bytes) | chunk 0 | ... | chunk n
+ * </pre>
+ *
+ * The data length is the number of plain bytes. Every chunk but the last ends in a full padding
+ * block, so whole chunks cut off the end would otherwise decrypt cleanly to shorter data; decrypting
+ * checks the chunks against the data length instead. As with plain CBC, nothing authenticates the
+ * data, so this detects truncation, not deliberate tampering.
+ * <p>
+ * Every chunk holds <tt>chunk size</tt> bytes of plain data (the last one may hold less) encrypted
+ * on its own with the {@link SymmetricCrypto default algorithm}. The first chunk uses the given
+ * IV, so a payload that fits into one chunk is encrypted exactly as
+ * {@link SymmetricCrypto#encrypt(byte[], SecretKey, IvParameterSpec)} would, preceded by the
+ * header. Every other chunk uses an IV derived from the given IV and the chunk index by encrypting
+ * <tt>iv XOR index</tt> with the key.
+ * <p>
+ * Payloads that fit into a single chunk are handled on the calling thread, all others on the
+ * {@link ForkJoinPool}. Files are handled the same way, through memory mapped windows of several
+ * chunks. Instances of this class are thread safe.
+ */
+public class ChunkedSymmetricCrypto {
+
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+    public static final int FILE_WINDOW_SIZE = 64 * 1024 * 1024;
+
+    static final byte[] MAGIC = { 'C', 'J', 'C' };
+    static final byte FORMAT_VERSION = 2;
+    static final int HEADER_BYTES = MAGIC.length + 1 + 4 + 8;
+
+    private static final String IV_DERIVATION_ALGORITHM_NAME = "AES/ECB/NoPadding";
+
+    private final SymmetricCrypto symmetric;
+    private final int chunkSize;
+    private final ForkJoinPool pool;
+
+    /**
+     * Create a new instance using chunks of {@link #DEFAULT_CHUNK_SIZE} bytes and the common
+     * {@link ForkJoinPool}.
+     *
+     * @param symmetric
+     */
+    public ChunkedSymmetricCrypto( SymmetricCrypto symmetric ) {
+        this( symmetric, DEFAULT_CHUNK_SIZE, ForkJoinPool.commonPool() );
+    }
+
+    /**
+     * Create a new instance.
+     *
+     * @param symmetric
+     *            The symmetric crypto used to create the ciphers.
+     * @param chunkSize
+     *            The number of plain bytes in every chunk. Must be a positive multiple of 16. Only
+     *            used when encrypting, as the chunk size is read back from the header when
+     *            decrypting.
+     * @param pool
+     *            The pool that the chunks are encrypted and decrypted on.
+     */
+    public ChunkedSymmetricCrypto( SymmetricCrypto symmetric, int chunkSize, ForkJoinPool pool ) {
+        checkChunkSize( chunkSize );
+        this.symmetric = symmetric;
+        this.chunkSize = chunkSize;
+        this.pool = pool;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Get the exact length of the data produced by encrypting <tt>dataLength</tt> bytes, header
+     * included.
+     *
+     * @param dataLength
+     * @return The encrypted length.
+     */
+    public long getEncryptedSize( long dataLength ) {
+        long chunks = getChunkCount( dataLength, chunkSize );
+        long lastLength = dataLength - ( chunks - 1 ) * chunkSize;
+        return HEADER_BYTES + ( chunks - 1 ) * ( chunkSize + SymmetricCrypto.ALGORITHM_BLOCK_BYTES )
+               + symmetric.getOutputSize( Cipher.ENCRYPT_MODE, (int) lastLength );
+    }
+
+    public byte[] encrypt( byte[] data, final SecretKey key, final IvParameterSpec iv )
+            throws CryptoException {
+        long encSize = getEncryptedSize( data.length );
+        if ( encSize > Integer.MAX_VALUE ) {
+            throw new CryptoException( "Data is too large to be encrypted into a single array." );
+        }
+        byte[] result = new byte[(int) encSize];
+        ByteBuffer out = ByteBuffer.wrap( result );
+        writeHeader( out, chunkSize, data.length );
+
+        final ByteBuffer src = ByteBuffer.wrap( data );
+        final ByteBuffer dst = out.slice();
+        runInMemory( new RangeWork() {
+            public void process( int lo, int hi )
+                    throws CryptoException {
+                for ( int i = lo; i < hi; i++ ) {
+                    encryptChunk( key, iv, src, dst, i, i, chunkSize );
+                }
+            }
+        }, (int) getChunkCount( data.length, chunkSize ) );
+        return result;
+    }
+
+    public byte[] decrypt( byte[] data, final SecretKey key, final IvParameterSpec iv )
+            throws CryptoException {
+        ByteBuffer in = ByteBuffer.wrap( data );
+        Header header = readHeader( in );
+        final int size = header.chunkSize;
+        final ByteBuffer src = in.slice();
+
+        int encChunkSize = size + SymmetricCrypto.ALGORITHM_BLOCK_BYTES;
+        int chunks = (int) getEncryptedChunkCount( src.remaining(), encChunkSize );
+        header.checkEncryptedLength( src.remaining() );
+
+        // Only the last chunk can have a length other than chunk size, so decrypt that one first
+        // to find out how big the result is.
+        int lastIndex = chunks - 1;
+        byte[] last = decryptChunk( key, iv, src, lastIndex, lastIndex, encChunkSize );
+        header.checkDataLength( (long) lastIndex * size + last.length );
+
+        byte[] result = new byte[lastIndex * size + last.length];
+        System.arraycopy( last, 0, result, lastIndex * size, last.length );
+        final ByteBuffer dst = ByteBuffer.wrap( result );
+        runInMemory( new RangeWork() {
+            public void process( int lo, int hi )
+                    throws CryptoException {
+                for ( int i = lo; i < hi; i++ ) {
+                    decryptFullChunk( key, iv, src, dst, i, i, size );
+                }
+            }
+        }, lastIndex );
+        return result;
+    }
+
+    /**
+     * Encrypt the file <tt>in</tt> into the file <tt>out</tt>, which is created or replaced.
+     * <p>
+     * Both files are accessed through memory mapped windows of at most {@link #FILE_WINDOW_SIZE}
+     * bytes, so the data is never copied onto the heap. The windows are encrypted in parallel on
+     * the pool.
+     *
+     * @param in
+     * @param out
+     * @param key
+     * @param iv
+     * @throws CryptoException
+     * @throws IOException
+     */
+    public void encryptFile( Path in, Path out, final SecretKey key, final IvParameterSpec iv )
+            throws CryptoException, IOException {
+        try ( final FileChannel inChannel = FileChannel.open( in, StandardOpenOption.READ );
+              final FileChannel outChannel = FileChannel.open( out, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                                                               StandardOpenOption.CREATE,
+                                                               StandardOpenOption.TRUNCATE_EXISTING ) ) {
+            final long dataLength = inChannel.size();
+            final long encSize = getEncryptedSize( dataLength );
+            final int encChunkSize = chunkSize + SymmetricCrypto.ALGORITHM_BLOCK_BYTES;
+            int chunks = checkFileChunkCount( getChunkCount( dataLength, chunkSize ) );
+
+            ByteBuffer header = ByteBuffer.allocate( HEADER_BYTES );
+            writeHeader( header, chunkSize, dataLength );
+            header.flip();
+            setSize( outChannel, encSize );
+            writeFully( outChannel, header, 0 );
+
+            run( new RangeWork() {
+                public void process( int lo, int hi )
+                        throws CryptoException, IOException {
+                    long inPosition = (long) lo * chunkSize;
+                    long outPosition = HEADER_BYTES + (long) lo * encChunkSize;
+                    long inLength = Math.min( (long) ( hi - lo ) * chunkSize, dataLength - inPosition );
+                    long outLength = Math.min( (long) ( hi - lo ) * encChunkSize, encSize - outPosition );
+                    ByteBuffer src = inChannel.map( MapMode.READ_ONLY, inPosition, inLength );
+                    ByteBuffer dst = outChannel.map( MapMode.READ_WRITE, outPosition, outLength );
+                    for ( int i = lo; i < hi; i++ ) {
+                        encryptChunk( key, iv, src, dst, i - lo, i, chunkSize );
+                    }
+                }
+            }, chunks, getChunksPerWindow( chunks, encChunkSize ) );
+        }
+    }
+
+    /**
+     * Decrypt the file <tt>in</tt> into the file <tt>out</tt>, which is created or replaced.
+     * <p>
+     * Both files are accessed through memory mapped windows of at most {@link #FILE_WINDOW_SIZE}
+     * bytes, so the data is never copied onto the heap. The windows are decrypted in parallel on
+     * the pool.
+     *
+     * @param in
+     * @param out
+     * @param key
+     * @param iv
+     * @throws CryptoException
+     * @throws IOException
+     */
+    public void decryptFile( Path in, Path out, final SecretKey key, final IvParameterSpec iv )
+            throws CryptoException, IOException {
+        try ( final FileChannel inChannel = FileChannel.open( in, StandardOpenOption.READ );
+              final FileChannel outChannel = FileChannel.open( out, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                                                               StandardOpenOption.CREATE,
+                                                               StandardOpenOption.TRUNCATE_EXISTING ) ) {
+            ByteBuffer headerBuf = ByteBuffer.allocate( HEADER_BYTES );
+            readFully( inChannel, headerBuf, 0 );
+            headerBuf.flip();
+            final Header header = readHeader( headerBuf );
+            final int size = header.chunkSize;
+            final int encChunkSize = size + SymmetricCrypto.ALGORITHM_BLOCK_BYTES;
+            long encLength = inChannel.size() - HEADER_BYTES;
+            int chunks = checkFileChunkCount( getEncryptedChunkCount( encLength, encChunkSize ) );
+            header.checkEncryptedLength( encLength );
+
+            // Only the last chunk can have a length other than chunk size, so decrypt that one first
+            // to find out how big the result is.
+            int lastIndex = chunks - 1;
+            long lastPosition = HEADER_BYTES + (long) lastIndex * encChunkSize;
+            ByteBuffer lastSrc = inChannel.map( MapMode.READ_ONLY, lastPosition, inChannel.size() - lastPosition );
+            byte[] last = decryptChunk( key, iv, lastSrc, 0, lastIndex, encChunkSize );
+            header.checkDataLength( (long) lastIndex * size + last.length );
+            setSize( outChannel, (long) lastIndex * size + last.length );
+            writeFully( outChannel, ByteBuffer.wrap( last ), (long) lastIndex * size );
+
+            run( new RangeWork() {
+                public void process( int lo, int hi )
+                        throws CryptoException, IOException {
+                    ByteBuffer src = inChannel.map( MapMode.READ_ONLY, HEADER_BYTES + (long) lo * encChunkSize,
+                                                    (long) ( hi - lo ) * encChunkSize );
+                    ByteBuffer dst = outChannel.map( MapMode.READ_WRITE, (long) lo * size, (long) ( hi - lo ) * size );
+                    for ( int i = lo; i < hi; i++ ) {
+                        decryptFullChunk( key, iv, src, dst, i - lo, i, size );
+                    }
+                }
+            }, lastIndex, getChunksPerWindow( lastIndex, encChunkSize ) );
+        }
+    }
+
+    /**
+     * Run <tt>work</tt> over in memory chunks, one chunk at a time.
+     */
+    private void runInMemory( RangeWork work, int count )
+            throws CryptoException {
+        try {
+            run( work, count, 1 );
+        } catch ( IOException e ) {
+            // Does not happen for in memory buffers.
+            throw new CryptoException( e );
+        }
+    }
+
+    static void checkChunkSize( int size ) {
+        if ( size <= 0 || size % SymmetricCrypto.ALGORITHM_BLOCK_BYTES != 0 ) {
+            throw new IllegalArgumentException( "The chunk size must be a positive multiple of "
+                                                + SymmetricCrypto.ALGORITHM_BLOCK_BYTES + ": " + size );
+        }
+    }
+
+    static long getChunkCount( long dataLength, int size ) {
+        // Empty data still produces one (padding only) chunk.
+        return Math.max( 1, ( dataLength + size - 1 ) / size );
+    }
+
+    static long getEncryptedChunkCount( long encLength, int encChunkSize )
+            throws CryptoException {
+        long chunks = ( encLength + encChunkSize - 1 ) / encChunkSize;
+        long lastLength = encLength - ( chunks - 1 ) * encChunkSize;
+        if ( chunks == 0 || lastLength % SymmetricCrypto.ALGORITHM_BLOCK_BYTES != 0 ) {
+            throw new CryptoException( "Invalid chunked data length: " + encLength );
+        }
+        return chunks;
+    }
+
+    /**
+     * Get the length of the chunks, without the header, that <tt>dataLength</tt> bytes encrypt
+     * to.
+     */
+    static long getEncryptedBodySize( long dataLength, int size ) {
+        long chunks = getChunkCount( dataLength, size );
+        long lastLength = dataLength - ( chunks - 1 ) * size;
+        // PKCS5 padding always adds between 1 and 16 bytes.
+        long lastEncLength = ( lastLength / SymmetricCrypto.ALGORITHM_BLOCK_BYTES + 1 )
+                             * SymmetricCrypto.ALGORITHM_BLOCK_BYTES;
+        return ( chunks - 1 ) * ( size + SymmetricCrypto.ALGORITHM_BLOCK_BYTES ) + lastEncLength;
+    }
+
+    static void writeHeader( ByteBuffer out, int size, long dataLength ) {
+        out.put( MAGIC );
+        out.put( FORMAT_VERSION );
+        out.putInt( size );
+        out.putLong( dataLength );
+    }
+
+    /**
+     * Read and check the header at the position of <tt>in</tt>.
+     */
+    static Header readHeader( ByteBuffer in )
+            throws CryptoException {
+        if ( in.remaining() < HEADER_BYTES ) {
+            throw new CryptoException( "Data is too short to hold a chunked header." );
+        }
+        for ( byte b : MAGIC ) {
+            if ( in.get() != b ) {
+                throw new CryptoException( "Data is not in the chunked format." );
+            }
+        }
+        byte version = in.get();
+        if ( version != FORMAT_VERSION ) {
+            throw new CryptoException( "Unsupported chunked format version: " + version );
+        }
+        int size = in.getInt();
+        try {
+            checkChunkSize( size );
+        } catch ( IllegalArgumentException e ) {
+            throw new CryptoException( e );
+        }
+        long dataLength = in.getLong();
+        if ( dataLength < 0 ) {
+            throw new CryptoException( "Invalid chunked data length: " + dataLength );
+        }
+        return new Header( size, dataLength );
+    }
+
+    /**
+     * Get the IV of the chunk with the given index.
+     */
+    static IvParameterSpec getChunkIv( SecretKey key, IvParameterSpec iv, long index )
+            throws CryptoException {
+        if ( index == 0 ) {
+            return iv;
+        }
+        byte[] block = iv.getIV().clone();
+        for ( int i = 0; i < 8; i++ ) {
+            block[block.length - 1 - i] ^= (byte) ( index >>> ( 8 * i ) );
+        }
+        try {
+            Cipher ecb = Cipher.getInstance( IV_DERIVATION_ALGORITHM_NAME );
+            ecb.init( Cipher.ENCRYPT_MODE, key );
+            return new IvParameterSpec( ecb.doFinal( block ) );
+        } catch ( NoSuchAlgorithmException e ) {
+            throw new CryptoException( e );
+        } catch ( NoSuchPaddingException e ) {
+            throw new CryptoException( e );
+        } catch ( InvalidKeyException e ) {
+            throw new CryptoException( e );
+        } catch ( IllegalBlockSizeException e ) {
+            throw new CryptoException( e );
+        } catch ( BadPaddingException e ) {
+            throw new CryptoException( e );
+        }
+    }
+
+    static ByteBuffer region( ByteBuffer buf, int offset, int length ) {
+        ByteBuffer r = buf.duplicate();
+        r.limit( offset + length );
+        r.position( offset );
+        return r;
+    }
+
+    /**
+     * Encrypt a chunk of <tt>in</tt> into its place in <tt>out</tt>.
+     *
+     * @param local
+     *            The position of the chunk in the buffers.
+     * @param index
+     *            The position of the chunk in the whole data, which the IV is derived from.
+     */
+    private void encryptChunk( SecretKey key, IvParameterSpec iv, ByteBuffer in, ByteBuffer out, int local,
+                               long index, int size )
+            throws CryptoException {
+        int inOffset = local * size;
+        int length = Math.min( size, in.limit() - inOffset );
+        ByteBuffer src = region( in, inOffset, length );
+        ByteBuffer dst = region( out, local * ( size + SymmetricCrypto.ALGORITHM_BLOCK_BYTES ),
+                                 symmetric.getOutputSize( Cipher.ENCRYPT_MODE, length ) );
+        symmetric.encrypt( src, dst, key, getChunkIv( key, iv, index ) );
+    }
+
+    /**
+     * Decrypt a chunk of <tt>in</tt>.
+     *
+     * @param local
+     *            The position of the chunk in the buffer.
+     * @param index
+     *            The position of the chunk in the whole data, which the IV is derived from.
+     */
+    private byte[] decryptChunk( SecretKey key, IvParameterSpec iv, ByteBuffer in, int local, long index,
+                                 int encChunkSize )
+            throws CryptoException {
+        int offset = local * encChunkSize;
+        ByteBuffer src = region( in, offset, Math.min( encChunkSize, in.limit() - offset ) );
+        // The cipher insists on room for the padding block, so decrypt into a scratch buffer
+        // rather than straight into the (tightly packed) result.
+        byte[] scratch = new byte[src.remaining()];
+        int length = symmetric.decrypt( src, ByteBuffer.wrap( scratch ), key, getChunkIv( key, iv, index ) );
+        if ( length == scratch.length ) {
+            return scratch;
+        }
+        byte[] result = new byte[length];
+        System.arraycopy( scratch, 0, result, 0, length );
+        return result;
+    }
+
+    /**
+     * Decrypt a chunk that is not the last one, and so must decrypt to exactly <tt>size</tt> bytes,
+     * into its place in <tt>out</tt>.
+     */
+    private void decryptFullChunk( SecretKey key, IvParameterSpec iv, ByteBuffer in, ByteBuffer out, int local,
+                                   long index, int size )
+            throws CryptoException {
+        byte[] plain = decryptChunk( key, iv, in, local, index, size + SymmetricCrypto.ALGORITHM_BLOCK_BYTES );
+        if ( plain.length != size ) {
+            throw new CryptoException( "Chunk " + index + " has an invalid length." );
+        }
+        region( out, local * size, size ).put( plain );
+    }
+
+    /**
+     * Get the number of chunks to put into one mapped window of a file. The windows are limited to
+     * {@link #FILE_WINDOW_SIZE} bytes, but are made smaller when needed so that every worker of the
+     * pool gets at least one.
+     */
+    private int getChunksPerWindow( long chunks, int encChunkSize ) {
+        long perWindow = Math.max( 1, FILE_WINDOW_SIZE / encChunkSize );
+        long perWorker = Math.max( 1, chunks / pool.getParallelism() );
+        return (int) Math.min( perWindow, perWorker );
+    }
+
+    private static int checkFileChunkCount( long chunks )
+            throws CryptoException {
+        if ( chunks > Integer.MAX_VALUE ) {
+            throw new CryptoException( "File is too large for the chunk size." );
+        }
+        return (int) chunks;
+    }
+
+    private static void setSize( FileChannel channel, long size )
+            throws IOException {
+        if ( size > 0 ) {
+            channel.write( ByteBuffer.allocate( 1 ), size - 1 );
+        }
+    }
+
+    private static void writeFully( FileChannel channel, ByteBuffer buf, long position )
+            throws IOException {
+        while ( buf.hasRemaining() ) {
+            position += channel.write( buf, position );
+        }
+    }
+
+    private static void readFully( FileChannel channel, ByteBuffer buf, long position )
+            throws IOException {
+        while ( buf.hasRemaining() ) {
+            int read = channel.read( buf, position );
+            if ( read == -1 ) {
+                break;
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Run <tt>work</tt> over the chunks <tt>[0, count)</tt>, in ranges of at most <tt>grain</tt>
+     * chunks. A single range is run on the calling thread, several are run on the pool.
+     */
+    private void run( RangeWork work, int count, int grain )
+            throws CryptoException, IOException {
+        if ( count <= 0 ) {
+            return;
+        }
+        if ( count <= grain ) {
+            // Not worth handing to the pool.
+            work.process( 0, count );
+            return;
+        }
+        try {
+            pool.invoke( new RangeTask( work, 0, count, grain ) );
+        } catch ( RuntimeException e ) {
+            // The pool may re-wrap the exception thrown by the task, so look through the causes.
+            for ( Throwable t = e; t != null; t = t.getCause() ) {
+                if ( t instanceof CryptoException ) {
+                    throw (CryptoException) t;
+                }
+                if ( t instanceof IOException ) {
+                    throw (IOException) t;
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * The chunk size and data length read from a header.
+     */
+    static class Header {
+
+        final int chunkSize;
+        final long dataLength;
+
+        Header( int chunkSize, long dataLength ) {
+            this.chunkSize = chunkSize;
+            this.dataLength = dataLength;
+        }
+
+        /**
+         * Check the length of the chunks before decrypting anything, which catches missing or
+         * extra whole chunks.
+         */
+        void checkEncryptedLength( long encLength )
+                throws CryptoException {
+            if ( encLength != getEncryptedBodySize( dataLength, chunkSize ) ) {
+                throw new CryptoException( "Chunked data is truncated or extended: " + encLength + " bytes for "
+                                           + dataLength + " bytes of data." );
+            }
+        }
+
+        /**
+         * Check the decrypted length, which catches a last chunk that was cut or replaced.
+         */
+        void checkDataLength( long decLength )
+                throws CryptoException {
+            if ( decLength != dataLength ) {
+                throw new CryptoException( "Chunked data decrypts to " + decLength + " bytes instead of "
+                                           + dataLength + "." );
+            }
+        }
+    }
+
+    /**
+     * Work on the chunks <tt>[lo, hi)</tt>.
+     */
+    private interface RangeWork {
+
+        void process( int lo, int hi )
+                throws CryptoException, IOException;
+    }
+
+    /**
+     * Splits the range <tt>[lo, hi)</tt> in half until it holds at most <tt>grain</tt> chunks and
+     * then hands it to the {@link RangeWork}.
+     */
+    private static class RangeTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final RangeWork work;
+        private final int lo;
+        private final int hi;
+        private final int grain;
+
+        RangeTask( RangeWork work, int lo, int hi, int grain ) {
+            this.work = work;
+            this.lo = lo;
+            this.hi = hi;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if ( hi - lo > grain ) {
+                int mid = ( lo + hi ) >>> 1;
+                invokeAll( new RangeTask( work, lo, mid, grain ), new RangeTask( work, mid, hi, grain ) );
+                return;
+            }
+            try {
+                work.process( lo, hi );
+            } catch ( CryptoException e ) {
+                throw new ChunkException( e );
+            } catch ( IOException e ) {
+                throw new ChunkException( e );
+            }
+        }
+    }
+
+    private static class ChunkException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        ChunkException( Exception e ) {
+            super( e );
+        }
+    }
+}
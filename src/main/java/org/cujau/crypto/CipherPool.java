@@ -0,0 +1,100 @@
+package org.cujau.crypto;
+
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+
+/**
+ * A pool of ciphers that are all initialized with the same key and mode.
+ * <p>
+ * A cipher returns to its initialized state after <tt>doFinal</tt>, so a pooled cipher can be
+ * used again without calling <tt>init</tt>. The pool only keeps a limited number of idle ciphers,
+ * so its size follows the number of threads that use it at the same time. This class is thread
+ * safe.
+ */
+class CipherPool {
+
+    static final int MAX_IDLE = 64;
+
+    private final String algorithm;
+    private final Key key;
+    private final int mode;
+    private final ConcurrentLinkedQueue<Cipher> idle = new ConcurrentLinkedQueue<Cipher>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private volatile int maxIdle;
+
+    CipherPool( String algorithm, Key key, int mode, int maxIdle ) {
+        this.algorithm = algorithm;
+        this.key = key;
+        this.mode = mode;
+        this.maxIdle = maxIdle;
+    }
+
+    Key getKey() {
+        return key;
+    }
+
+    /**
+     * Change the number of idle ciphers the pool keeps, dropping those above the new limit.
+     */
+    void setMaxIdle( int maxIdle ) {
+        this.maxIdle = maxIdle;
+        while ( idleCount.get() > maxIdle && idle.poll() != null ) {
+            idleCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Encrypt or decrypt the given data with one of the ciphers of the pool.
+     */
+    byte[] doFinal( byte[] data, int offset, int length )
+            throws CryptoException {
+        Cipher cipher = borrow();
+        byte[] result;
+        try {
+            result = cipher.doFinal( data, offset, length );
+        } catch ( IllegalBlockSizeException e ) {
+            // Don't return the cipher to the pool, its state is unknown.
+            throw new CryptoException( e );
+        } catch ( BadPaddingException e ) {
+            throw new CryptoException( e );
+        }
+        release( cipher );
+        return result;
+    }
+
+    private Cipher borrow()
+            throws CryptoException {
+        Cipher cipher = idle.poll();
+        if ( cipher != null ) {
+            idleCount.decrementAndGet();
+            return cipher;
+        }
+        try {
+            cipher = Cipher.getInstance( algorithm );
+            cipher.init( mode, key );
+            return cipher;
+        } catch ( NoSuchAlgorithmException e ) {
+            throw new CryptoException( e );
+        } catch ( NoSuchPaddingException e ) {
+            throw new CryptoException( e );
+        } catch ( InvalidKeyException e ) {
+            throw new CryptoException( e );
+        }
+    }
+
+    private void release( Cipher cipher ) {
+        if ( idleCount.incrementAndGet() <= maxIdle ) {
+            idle.offer( cipher );
+        } else {
+            idleCount.decrementAndGet();
+        }
+    }
+}
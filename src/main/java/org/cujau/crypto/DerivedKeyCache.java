@@ -0,0 +1,130 @@
+package org.cujau.crypto;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A cache of keys derived from passwords by {@link SymmetricCrypto}, so that deriving the same key
+ * again skips the deliberately slow PBKDF2.
+ * <p>
+ * The entries are looked up by an HMAC-SHA256 of the password, the salt and the derivation
+ * parameters, under a random key that only lives in this cache. Neither the password nor a plain
+ * digest of it, which would allow guessing the password offline, is kept. The cache holds at most
+ * a fixed number of entries, evicting the least recently used one when full, and every entry
+ * expires after a fixed time. Key material that leaves the cache is overwritten with zeros. This
+ * class is thread safe.
+ *
+ * @see SymmetricCrypto#setDerivedKeyCache(DerivedKeyCache)
+ */
+public class DerivedKeyCache {
+
+    static final String MAC_ALGORITHM_NAME = "HmacSHA256";
+
+    private final ExpiringLruCache<ByteBuffer, byte[]> cache;
+    private final Mac mac;
+
+    /**
+     * @param maxEntries
+     *            The maximum number of keys held by the cache.
+     * @param ttlMillis
+     *            The time, in milliseconds, a key stays in the cache after it was added.
+     * @throws CryptoException
+     *             If HMAC-SHA256 is not available.
+     */
+    public DerivedKeyCache( int maxEntries, long ttlMillis )
+            throws CryptoException {
+        cache = new ExpiringLruCache<ByteBuffer, byte[]>( maxEntries, ttlMillis ) {
+            @Override
+            protected void removed( byte[] value ) {
+                Arrays.fill( value, (byte) 0 );
+            }
+
+            @Override
+            protected byte[] copy( byte[] value ) {
+                // Under the lock, as the cached array is zeroed when it is evicted.
+                return value.clone();
+            }
+        };
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes( secret );
+        try {
+            mac = Mac.getInstance( MAC_ALGORITHM_NAME );
+            mac.init( new SecretKeySpec( secret, MAC_ALGORITHM_NAME ) );
+        } catch ( NoSuchAlgorithmException e ) {
+            throw new CryptoException( e );
+        } catch ( InvalidKeyException e ) {
+            throw new CryptoException( e );
+        } finally {
+            Arrays.fill( secret, (byte) 0 );
+        }
+    }
+
+    /**
+     * @return The number of lookups that found a key.
+     */
+    public long getHits() {
+        return cache.getHits();
+    }
+
+    /**
+     * @return The number of lookups that did not find a key, including expired ones.
+     */
+    public long getMisses() {
+        return cache.getMisses();
+    }
+
+    /**
+     * @return The number of keys removed to keep the cache within its maximum size.
+     */
+    public long getEvictions() {
+        return cache.getEvictions();
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    public void clear() {
+        cache.clear();
+    }
+
+    /**
+     * Get the lookup key for a password, a salt and the derivation parameters.
+     */
+    ByteBuffer digest( String prf, int iterations, char[] password, byte[] salt ) {
+        ByteBuffer pwdBytes = StandardCharsets.UTF_8.encode( CharBuffer.wrap( password ) );
+        try {
+            synchronized ( mac ) {
+                mac.update( prf.getBytes( StandardCharsets.UTF_8 ) );
+                mac.update( ByteBuffer.allocate( 8 ).putInt( iterations ).putInt( salt.length ).array() );
+                mac.update( salt );
+                mac.update( pwdBytes );
+                return ByteBuffer.wrap( mac.doFinal() );
+            }
+        } finally {
+            pwdBytes.clear();
+            while ( pwdBytes.hasRemaining() ) {
+                pwdBytes.put( (byte) 0 );
+            }
+        }
+    }
+
+    /**
+     * @return A copy of the cached key, or <tt>null</tt>.
+     */
+    byte[] get( ByteBuffer digest ) {
+        return cache.get( digest );
+    }
+
+    void put( ByteBuffer digest, byte[] key ) {
+        cache.put( digest, key.clone() );
+    }
+}
@@ -0,0 +1,131 @@
+package org.cujau.crypto;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A size bounded cache that evicts the least recently used entry when it is full, and drops
+ * entries that are older than the time to live when they are next looked up.
+ * <p>
+ * Subclasses can override {@link #removed(Object)} to clean up values that leave the cache, and
+ * {@link #copy(Object)} to hand out copies that stay valid after that. This class is thread safe.
+ */
+class ExpiringLruCache<K, V> {
+
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final LinkedHashMap<K, Entry<V>> entries;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param maxEntries
+     *            The maximum number of entries held by the cache.
+     * @param ttlMillis
+     *            The time, in milliseconds, an entry stays valid after it was added.
+     */
+    ExpiringLruCache( int maxEntries, long ttlMillis ) {
+        if ( maxEntries <= 0 ) {
+            throw new IllegalArgumentException( "The maximum number of entries must be positive: " + maxEntries );
+        }
+        if ( ttlMillis <= 0 ) {
+            throw new IllegalArgumentException( "The time to live must be positive: " + ttlMillis );
+        }
+        this.maxEntries = maxEntries;
+        this.ttlNanos = ttlMillis * 1000000L;
+        // Access order, so that the eldest entry is the least recently used.
+        this.entries = new LinkedHashMap<K, Entry<V>>( 16, 0.75f, true );
+    }
+
+    /**
+     * @return The {@link #copy(Object) copy} of the value for the key, or <tt>null</tt> if there is
+     *         none or it has expired.
+     */
+    synchronized V get( K key ) {
+        Entry<V> entry = entries.get( key );
+        if ( entry == null ) {
+            misses++;
+            return null;
+        }
+        if ( System.nanoTime() - entry.created > ttlNanos ) {
+            entries.remove( key );
+            removed( entry.value );
+            misses++;
+            return null;
+        }
+        hits++;
+        return copy( entry.value );
+    }
+
+    synchronized void put( K key, V value ) {
+        Entry<V> old = entries.put( key, new Entry<V>( value, System.nanoTime() ) );
+        if ( old != null ) {
+            removed( old.value );
+        }
+        Iterator<Map.Entry<K, Entry<V>>> it = entries.entrySet().iterator();
+        while ( entries.size() > maxEntries ) {
+            Entry<V> eldest = it.next().getValue();
+            it.remove();
+            evictions++;
+            removed( eldest.value );
+        }
+    }
+
+    synchronized void clear() {
+        for ( Entry<V> entry : entries.values() ) {
+            removed( entry.value );
+        }
+        entries.clear();
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return The number of entries removed to keep the cache within its maximum size.
+     */
+    synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Called with the lock held for every value that leaves the cache, whether it was evicted,
+     * expired, replaced or cleared.
+     */
+    protected void removed( V value ) {
+        // Nothing by default.
+    }
+
+    /**
+     * Called with the lock held for every value that is returned by {@link #get(Object)}, so that
+     * the returned value is not affected by a {@link #removed(Object)} that runs later.
+     *
+     * @return The value itself by default.
+     */
+    protected V copy( V value ) {
+        return value;
+    }
+
+    private static class Entry<V> {
+
+        private final V value;
+        private final long created;
+
+        Entry( V value, long created ) {
+            this.value = value;
+            this.created = created;
+        }
+    }
+}
@@ -1,17 +1,112 @@
 package org.cujau.crypto;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
-import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.GCMParameterSpec;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Hybrid encryption: the data is encrypted with a random symmetric key, and the symmetric key and
+ * IV are encrypted with the asymmetric key. Everything is returned in a single bundle.
+ * <p>
+ * These bundle layouts are supported:
+ * <dl>
+ * <dt>{@link #BUNDLE_V1}</dt>
+ * <dd><tt>RSA(iv) | RSA(key) | AES(data)</tt>. The default, also understood by the Ruby
+ * implementation.</dd>
+ * <dt>{@link #BUNDLE_V2}</dt>
+ * <dd><tt>'C' 'J' 'B' | version | flags | RSA(key + iv) | AES(data)</tt>. The key and IV are
+ * encrypted together, which halves the number of asymmetric operations and makes the bundle one
+ * key size shorter.</dd>
+ * <dt>{@link #BUNDLE_V3}</dt>
+ * <dd><tt>'C' 'J' 'B' | version | flags | RSA(key) | iv | AES(data)</tt>. Created when the
+ * {@link #setDataKeyReuse(int, long) data key is reused}: every bundle of a reuse window holds the
+ * same encrypted key and its own IV.</dd>
+ * <dt>{@link #BUNDLE_V4}</dt>
+ * <dd><tt>'C' 'J' 'B' | version | flags | count | recipient 1 | ... | recipient n | AES(data)</tt>,
+ * where every recipient is <tt>key id | length | RSA(key + iv)</tt>. Created by
+ * {@link #encryptForRecipients(byte[], List)}: the data is encrypted once and the key and IV are
+ * encrypted with the public key of every recipient.</dd>
+ * </dl>
+ * The decrypt methods recognize all layouts, whatever the {@link #setBundleVersion(int) bundle
+ * version} used for encrypting.
+ * <p>
+ * The data is encrypted with AES-CBC, or with AES-GCM when {@link #setAuthenticated(boolean)
+ * authenticated} encryption is on. AES-GCM bundles carry the {@link #BUNDLE_FLAG_GCM} flag, a 12
+ * byte IV and a tag after the data that authenticates both the data and the header. Decrypting an
+ * AES-GCM bundle from a stream holds the whole plain data in memory until the tag has been
+ * verified, see {@link #decryptWithPrivateKey(InputStream, OutputStream)}; use AES-CBC for
+ * payloads too large for memory, such as backups.
+ * <p>
+ * With the {@link #setKeyIdHeader(boolean) key id header} on, {@link #BUNDLE_V2} and
+ * {@link #BUNDLE_V3} bundles carry the {@link #BUNDLE_FLAG_KEY_ID} flag and the
+ * {@link AsymmetricCrypto#getKeyId() key id} of the asymmetric key right after the flags, so the
+ * decrypting side can pick its key, e.g. from a {@link KeyRing}, before any asymmetric operation.
+ * <p>
+ * An optional {@link SessionKeyCache} lets repeated bundles skip the asymmetric decryption of their
+ * key. Together with data key reuse on the encrypting side, the cost of the asymmetric operations
+ * is spread over all the messages of a reuse window.
+ * <p>
+ * The batch methods, such as {@link #decryptAllWithPrivateKey(List)}, spread the work for many
+ * messages over the threads of an {@link #setExecutor(ExecutorService) executor}.
+ */
 public class HybridCrypto {
 
     private static final Logger LOG = LoggerFactory.getLogger( HybridCrypto.class );
 
+    public static final int BUNDLE_V1 = 1;
+    public static final int BUNDLE_V2 = 2;
+    public static final int BUNDLE_V3 = 3;
+    public static final int BUNDLE_V4 = 4;
+    /**
+     * Set in the flags of a bundle whose data is encrypted and authenticated with AES-GCM.
+     */
+    public static final int BUNDLE_FLAG_GCM = 0x01;
+    /**
+     * Set in the flags of a bundle whose header holds the key id of the asymmetric key.
+     */
+    public static final int BUNDLE_FLAG_KEY_ID = 0x02;
+
+    static final byte[] BUNDLE_MAGIC = { 'C', 'J', 'B' };
+    static final int BUNDLE_HEADER_BYTES = BUNDLE_MAGIC.length + 2;
+
+    private static final int IV_BYTES = 16;
+    private static final int MAX_RECIPIENTS = 0xFFFF;
+    // The number of tasks per thread of the executor a batch is split into, to balance the load.
+    private static final int BATCH_TASKS_PER_THREAD = 4;
+
     private AsymmetricCrypto asymmetric;
     private SymmetricCrypto symmetric;
+    private int bundleVersion = BUNDLE_V1;
+    private SessionKeyCache sessionKeyCache;
+    private int dataKeyMaxMessages;
+    private long dataKeyMaxAgeNanos;
+    private final AtomicReference<DataKeyWindow> publicKeyWindow = new AtomicReference<DataKeyWindow>();
+    private final AtomicReference<DataKeyWindow> privateKeyWindow = new AtomicReference<DataKeyWindow>();
+    private ExecutorService executor;
+    private boolean authenticated;
+    private boolean keyIdHeader;
 
     public HybridCrypto( AsymmetricCrypto asym ) {
         this.asymmetric = asym;
@@ -22,67 +117,1129 @@ public class HybridCrypto {
         }
     }
 
+    /**
+     * @param asym
+     * @param sym
+     *            The symmetric crypto to encrypt the data with, e.g. one with its own
+     *            {@link SecureRandomPool}.
+     */
+    public HybridCrypto( AsymmetricCrypto asym, SymmetricCrypto sym ) {
+        this.asymmetric = asym;
+        this.symmetric = sym;
+    }
+
+    public int getBundleVersion() {
+        return bundleVersion;
+    }
+
+    /**
+     * Set the layout of the bundles created by the encrypt methods. Defaults to
+     * {@link #BUNDLE_V1}.
+     *
+     * @param version
+     *            Either {@link #BUNDLE_V1} or {@link #BUNDLE_V2}.
+     */
+    public void setBundleVersion( int version ) {
+        if ( version != BUNDLE_V1 && version != BUNDLE_V2 ) {
+            throw new IllegalArgumentException( "Unknown bundle version: " + version );
+        }
+        bundleVersion = version;
+    }
+
+    public SessionKeyCache getSessionKeyCache() {
+        return sessionKeyCache;
+    }
+
+    /**
+     * Set the cache of unwrapped keys used by the decrypt methods.
+     *
+     * @param cache
+     *            The cache, or <tt>null</tt> (the default) to decrypt every key.
+     */
+    public void setSessionKeyCache( SessionKeyCache cache ) {
+        sessionKeyCache = cache;
+    }
+
+    /**
+     * Reuse each random data key for several messages. The key is encrypted with the asymmetric key
+     * once, and every {@link #BUNDLE_V3} bundle encrypted with it gets its own random IV. A new key
+     * is created after <tt>maxMessages</tt> messages or <tt>maxAgeMillis</tt> milliseconds,
+     * whichever comes first.
+     * <p>
+     * While data key reuse is on, the bundle version is ignored and {@link #BUNDLE_V3} bundles are
+     * created. Decrypting them only saves the asymmetric operation when a
+     * {@link #setSessionKeyCache(SessionKeyCache) session key cache} is used.
+     *
+     * @param maxMessages
+     *            The number of messages encrypted with one key. A value of 1 or less turns data
+     *            key reuse off, which is the default.
+     * @param maxAgeMillis
+     *            The time, in milliseconds, a key is used for.
+     */
+    public void setDataKeyReuse( int maxMessages, long maxAgeMillis ) {
+        if ( maxMessages > 1 && maxAgeMillis <= 0 ) {
+            throw new IllegalArgumentException( "The maximum age must be positive: " + maxAgeMillis );
+        }
+        dataKeyMaxMessages = maxMessages > 1 ? maxMessages : 0;
+        dataKeyMaxAgeNanos = maxAgeMillis * 1000000L;
+        publicKeyWindow.set( null );
+        privateKeyWindow.set( null );
+    }
+
+    public boolean isAuthenticated() {
+        return authenticated;
+    }
+
+    /**
+     * Encrypt the data with AES-GCM instead of AES-CBC. The data and the header of the bundle are
+     * then authenticated in the same pass as the encryption, and decrypting fails if either has
+     * been modified. The bundle is flagged with {@link #BUNDLE_FLAG_GCM}.
+     * <p>
+     * {@link #BUNDLE_V1} bundles have no header, so {@link #BUNDLE_V2} bundles are created instead
+     * while this is on.
+     *
+     * Note that the stream decrypt methods hold the whole plain data of an AES-GCM bundle in
+     * memory, as nothing may be released before the tag is verified. Large payloads that are
+     * decrypted from streams should use AES-CBC.
+     *
+     * @param authenticated
+     *            <tt>true</tt> for AES-GCM, <tt>false</tt> (the default) for AES-CBC.
+     */
+    public void setAuthenticated( boolean authenticated ) {
+        this.authenticated = authenticated;
+    }
+
+    public boolean isKeyIdHeader() {
+        return keyIdHeader;
+    }
+
+    /**
+     * Put the {@link AsymmetricCrypto#getKeyId() key id} of the asymmetric key in the header of the
+     * bundle, flagged with {@link #BUNDLE_FLAG_KEY_ID}. Decrypting a bundle with another key then
+     * fails without an asymmetric operation.
+     * <p>
+     * {@link #BUNDLE_V1} bundles have no header, so {@link #BUNDLE_V2} bundles are created instead
+     * while this is on.
+     *
+     * @param keyIdHeader
+     *            <tt>true</tt> to add the key id, <tt>false</tt> (the default) to leave it out.
+     */
+    public void setKeyIdHeader( boolean keyIdHeader ) {
+        this.keyIdHeader = keyIdHeader;
+    }
+
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Set the executor that runs the batch methods. A batch is split by the parallelism of a
+     * {@link ForkJoinPool} or the maximum pool size of a {@link ThreadPoolExecutor}, and by the
+     * number of processors for other executors.
+     *
+     * @param executor
+     *            The executor, or <tt>null</tt> (the default) to use the common fork-join pool.
+     */
+    public void setExecutor( ExecutorService executor ) {
+        this.executor = executor;
+    }
+
     public byte[] encryptWithPrivateKey( byte[] data )
             throws CryptoException {
-        SecretKey key = symmetric.getRandomKey();
-        IvParameterSpec iv = symmetric.getRandomIV();
+        return encrypt( data, false );
+    }
 
-        byte[] encData = symmetric.encrypt( data, key, iv );
-        byte[] encKey = asymmetric.encryptWithPrivateKey( key.getEncoded() );
-        byte[] encIv = asymmetric.encryptWithPrivateKey( iv.getIV() );
+    public byte[] encryptWithPublicKey( byte[] data )
+            throws CryptoException {
+        return encrypt( data, true );
+    }
 
-        return bundle( encData, encKey, encIv );
+    public byte[] decryptWithPublicKey( byte[] encBundle )
+            throws CryptoException {
+        return decrypt( encBundle, 0, encBundle.length, false );
     }
 
-    public byte[] encryptWithPublicKey( byte[] data )
+    public byte[] decryptWithPrivateKey( byte[] encBundle )
             throws CryptoException {
-        SecretKey key = symmetric.getRandomKey();
-        IvParameterSpec iv = symmetric.getRandomIV();
+        return decrypt( encBundle, 0, encBundle.length, true );
+    }
 
-        byte[] encData = symmetric.encrypt( data, key, iv );
-        byte[] encKey = asymmetric.encryptWithPublicKey( key.getEncoded() );
-        byte[] encIv = asymmetric.encryptWithPublicKey( iv.getIV() );
+    /**
+     * Get the length of the bundle the encrypt methods create for <tt>dataLength</tt> bytes of data
+     * with the current settings. This allows callers to allocate their output buffers up front.
+     *
+     * @param dataLength
+     *            The number of bytes to encrypt.
+     * @return The number of bytes of the bundle.
+     */
+    public int getBundleSize( int dataLength ) {
+        int version = getEncryptVersion();
+        return getBundleSize( version, isGcm( version ), dataLength );
+    }
 
-        return bundle( encData, encKey, encIv );
+    /**
+     * Encrypt <tt>length</tt> bytes of <tt>data</tt>, starting at <tt>offset</tt>, and write the
+     * bundle into <tt>out</tt> at <tt>outOffset</tt>, without any intermediate copies.
+     *
+     * @return The number of bytes written, see {@link #getBundleSize(int)}.
+     * @throws CryptoException
+     *             If <tt>out</tt> is too small or the encryption fails.
+     */
+    public int encryptWithPrivateKey( byte[] data, int offset, int length, byte[] out, int outOffset )
+            throws CryptoException {
+        return encrypt( ByteBuffer.wrap( data, offset, length ),
+                        ByteBuffer.wrap( out, outOffset, out.length - outOffset ), false );
     }
 
-    public byte[] decryptWithPublicKey( byte[] encBundle )
+    /**
+     * Encrypt <tt>length</tt> bytes of <tt>data</tt>, starting at <tt>offset</tt>, and write the
+     * bundle into <tt>out</tt> at <tt>outOffset</tt>, without any intermediate copies.
+     *
+     * @return The number of bytes written, see {@link #getBundleSize(int)}.
+     * @throws CryptoException
+     *             If <tt>out</tt> is too small or the encryption fails.
+     */
+    public int encryptWithPublicKey( byte[] data, int offset, int length, byte[] out, int outOffset )
             throws CryptoException {
-        byte[] encKey = new byte[asymmetric.getKeySizeBytes()];
-        byte[] encIv = new byte[asymmetric.getKeySizeBytes()];
-        byte[] encData = new byte[encBundle.length - asymmetric.getKeySizeBytes() * 2];
+        return encrypt( ByteBuffer.wrap( data, offset, length ),
+                        ByteBuffer.wrap( out, outOffset, out.length - outOffset ), true );
+    }
 
-        unbundle( encBundle, encData, encKey, encIv );
-        SecretKey key = symmetric.getKeyFromBytes( asymmetric.decryptWithPublicKey( encKey ) );
-        IvParameterSpec iv = symmetric.getIvFromBytes( asymmetric.decryptWithPublicKey( encIv ) );
-        
-        return symmetric.decrypt( encData, key, iv );
+    /**
+     * Encrypt the remaining bytes of <tt>src</tt> and write the bundle into <tt>dst</tt>. On return
+     * the position of <tt>src</tt> is at its limit and the position of <tt>dst</tt> has been
+     * advanced by the number of bytes written.
+     *
+     * @return The number of bytes written, see {@link #getBundleSize(int)}.
+     * @throws CryptoException
+     *             If <tt>dst</tt> is too small or the encryption fails.
+     */
+    public int encryptWithPrivateKey( ByteBuffer src, ByteBuffer dst )
+            throws CryptoException {
+        return encrypt( src, dst, false );
     }
 
-    public byte[] decryptWithPrivateKey( byte[] encBundle )
+    /**
+     * Encrypt the remaining bytes of <tt>src</tt> and write the bundle into <tt>dst</tt>. On return
+     * the position of <tt>src</tt> is at its limit and the position of <tt>dst</tt> has been
+     * advanced by the number of bytes written.
+     *
+     * @return The number of bytes written, see {@link #getBundleSize(int)}.
+     * @throws CryptoException
+     *             If <tt>dst</tt> is too small or the encryption fails.
+     */
+    public int encryptWithPublicKey( ByteBuffer src, ByteBuffer dst )
             throws CryptoException {
-        byte[] encKey = new byte[asymmetric.getKeySizeBytes()];
-        byte[] encIv = new byte[asymmetric.getKeySizeBytes()];
-        byte[] encData = new byte[encBundle.length - asymmetric.getKeySizeBytes() * 2];
+        return encrypt( src, dst, true );
+    }
 
-        unbundle( encBundle, encData, encKey, encIv );
-        SecretKey key = symmetric.getKeyFromBytes( asymmetric.decryptWithPrivateKey( encKey ) );
-        IvParameterSpec iv = symmetric.getIvFromBytes( asymmetric.decryptWithPrivateKey( encIv ) );
+    /**
+     * Decrypt the bundle held in <tt>length</tt> bytes of <tt>encBundle</tt>, starting at
+     * <tt>offset</tt>, without copying it first.
+     */
+    public byte[] decryptWithPublicKey( byte[] encBundle, int offset, int length )
+            throws CryptoException {
+        return decrypt( encBundle, offset, length, false );
+    }
+
+    /**
+     * Decrypt the bundle held in <tt>length</tt> bytes of <tt>encBundle</tt>, starting at
+     * <tt>offset</tt>, without copying it first.
+     */
+    public byte[] decryptWithPrivateKey( byte[] encBundle, int offset, int length )
+            throws CryptoException {
+        return decrypt( encBundle, offset, length, true );
+    }
 
-        return symmetric.decrypt( encData, key, iv );
+    /**
+     * Decrypt the bundle held in the remaining bytes of <tt>encBundle</tt>. On return its position
+     * is at its limit. A buffer that is backed by an array is not copied.
+     */
+    public byte[] decryptWithPublicKey( ByteBuffer encBundle )
+            throws CryptoException {
+        return decrypt( encBundle, false );
+    }
+
+    /**
+     * Decrypt the bundle held in the remaining bytes of <tt>encBundle</tt>. On return its position
+     * is at its limit. A buffer that is backed by an array is not copied.
+     */
+    public byte[] decryptWithPrivateKey( ByteBuffer encBundle )
+            throws CryptoException {
+        return decrypt( encBundle, true );
     }
 
-    private void unbundle( byte[] encBundle, byte[] encData, byte[] encKey, byte[] encIv ) {
-        System.arraycopy( encBundle, 0, encIv, 0, asymmetric.getKeySizeBytes() );
-        System.arraycopy( encBundle, asymmetric.getKeySizeBytes(), encKey, 0, asymmetric.getKeySizeBytes() );
-        System.arraycopy( encBundle, asymmetric.getKeySizeBytes() * 2, encData, 0, encData.length );
+    /**
+     * Encrypt everything read from the <tt>in</tt> stream and write the bundle to the <tt>out</tt>
+     * stream: first the encrypted key material, then the encrypted data. The data is processed
+     * through a fixed size buffer, so the memory used does not depend on the size of the data. The
+     * bundle is the same as the one {@link #encryptWithPrivateKey(byte[])} creates.
+     * <p>
+     * Neither stream is closed by this method.
+     *
+     * @return The number of bytes written to <tt>out</tt>.
+     * @throws CryptoException
+     * @throws IOException
+     *             If reading or writing one of the streams fails.
+     */
+    public long encryptWithPrivateKey( InputStream in, OutputStream out )
+            throws CryptoException, IOException {
+        return encrypt( in, out, false );
     }
 
-    private byte[] bundle( byte[] encData, byte[] encKey, byte[] encIv ) {
-        byte[] encBundle = new byte[encData.length + encKey.length + encIv.length];
-        System.arraycopy( encIv, 0, encBundle, 0, encIv.length );
-        System.arraycopy( encKey, 0, encBundle, encIv.length, encKey.length );
-        System.arraycopy( encData, 0, encBundle, encIv.length + encKey.length, encData.length );
+    /**
+     * Encrypt everything read from the <tt>in</tt> stream and write the bundle to the <tt>out</tt>
+     * stream: first the encrypted key material, then the encrypted data. The data is processed
+     * through a fixed size buffer, so the memory used does not depend on the size of the data. The
+     * bundle is the same as the one {@link #encryptWithPublicKey(byte[])} creates.
+     * <p>
+     * Neither stream is closed by this method.
+     *
+     * @return The number of bytes written to <tt>out</tt>.
+     * @throws CryptoException
+     * @throws IOException
+     *             If reading or writing one of the streams fails.
+     */
+    public long encryptWithPublicKey( InputStream in, OutputStream out )
+            throws CryptoException, IOException {
+        return encrypt( in, out, true );
+    }
+
+    /**
+     * Read a bundle from the <tt>in</tt> stream and write the decrypted data to the <tt>out</tt>
+     * stream. The key material is read and decrypted first, then the data is decrypted through a
+     * fixed size buffer. Any bundle layout is recognized.
+     * <p>
+     * The fixed size buffer only holds for AES-CBC bundles. AES-GCM bundles, see
+     * {@link #setAuthenticated(boolean)}, release no data before the tag at the end has been
+     * verified, so the whole plain data is held in memory and the memory used grows with the size
+     * of the bundle.
+     * <p>
+     * Neither stream is closed by this method.
+     *
+     * @return The number of bytes written to <tt>out</tt>.
+     * @throws CryptoException
+     * @throws IOException
+     *             If reading or writing one of the streams fails.
+     */
+    public long decryptWithPublicKey( InputStream in, OutputStream out )
+            throws CryptoException, IOException {
+        return decrypt( in, out, false );
+    }
+
+    /**
+     * Read a bundle from the <tt>in</tt> stream and write the decrypted data to the <tt>out</tt>
+     * stream. The key material is read and decrypted first, then the data is decrypted through a
+     * fixed size buffer. Any bundle layout is recognized.
+     * <p>
+     * The fixed size buffer only holds for AES-CBC bundles. AES-GCM bundles, see
+     * {@link #setAuthenticated(boolean)}, release no data before the tag at the end has been
+     * verified, so the whole plain data is held in memory and the memory used grows with the size
+     * of the bundle.
+     * <p>
+     * Neither stream is closed by this method.
+     *
+     * @return The number of bytes written to <tt>out</tt>.
+     * @throws CryptoException
+     * @throws IOException
+     *             If reading or writing one of the streams fails.
+     */
+    public long decryptWithPrivateKey( InputStream in, OutputStream out )
+            throws CryptoException, IOException {
+        return decrypt( in, out, true );
+    }
+
+    /**
+     * Encrypt every item of the list with {@link #encryptWithPrivateKey(byte[])}, in parallel.
+     *
+     * @return One result per item, in the order of the items.
+     * @throws CryptoException
+     *             When the batch was interrupted. Failures of single items are reported by their
+     *             result.
+     */
+    public List<BatchResult> encryptAllWithPrivateKey( List<byte[]> data )
+            throws CryptoException {
+        return runAll( data, true, false );
+    }
+
+    /**
+     * Encrypt every item of the list with {@link #encryptWithPublicKey(byte[])}, in parallel.
+     *
+     * @return One result per item, in the order of the items.
+     * @throws CryptoException
+     *             When the batch was interrupted. Failures of single items are reported by their
+     *             result.
+     */
+    public List<BatchResult> encryptAllWithPublicKey( List<byte[]> data )
+            throws CryptoException {
+        return runAll( data, true, true );
+    }
+
+    /**
+     * Decrypt every bundle of the list with {@link #decryptWithPublicKey(byte[])}, in parallel.
+     *
+     * @return One result per bundle, in the order of the bundles.
+     * @throws CryptoException
+     *             When the batch was interrupted. Failures of single bundles are reported by their
+     *             result.
+     */
+    public List<BatchResult> decryptAllWithPublicKey( List<byte[]> encBundles )
+            throws CryptoException {
+        return runAll( encBundles, false, false );
+    }
+
+    /**
+     * Decrypt every bundle of the list with {@link #decryptWithPrivateKey(byte[])}, in parallel.
+     *
+     * @return One result per bundle, in the order of the bundles.
+     * @throws CryptoException
+     *             When the batch was interrupted. Failures of single bundles are reported by their
+     *             result.
+     */
+    public List<BatchResult> decryptAllWithPrivateKey( List<byte[]> encBundles )
+            throws CryptoException {
+        return runAll( encBundles, false, true );
+    }
+
+    /**
+     * Encrypt the data once for several recipients, in a {@link #BUNDLE_V4} bundle. The random key
+     * and IV are encrypted with the public key of every recipient, so the cost of encrypting the
+     * data does not grow with the number of recipients.
+     * <p>
+     * Every recipient decrypts the bundle with {@link #decryptWithPrivateKey(byte[])}, picking its
+     * entry by {@link AsymmetricCrypto#getKeyId() key id}.
+     *
+     * @param data
+     * @param recipients
+     *            The recipients, each with its public key set.
+     * @return The bundle.
+     * @throws CryptoException
+     */
+    public byte[] encryptForRecipients( byte[] data, List<AsymmetricCrypto> recipients )
+            throws CryptoException {
+        if ( recipients.isEmpty() || recipients.size() > MAX_RECIPIENTS ) {
+            throw new IllegalArgumentException( "Invalid number of recipients: " + recipients.size() );
+        }
+        boolean gcm = authenticated;
+        DataKey dataKey = new DataKey( symmetric.getRandomKey(), newIv( gcm ), gcm );
+        byte[] keyAndIv = joinKeyAndIv( dataKey.key, dataKey.iv );
+        byte[][] ids = new byte[recipients.size()][];
+        byte[][] encKeys = new byte[recipients.size()][];
+        int length = BUNDLE_HEADER_BYTES + 2 + getDataSize( gcm, data.length );
+        for ( int i = 0; i < recipients.size(); i++ ) {
+            ids[i] = recipients.get( i ).getKeyId();
+            encKeys[i] = recipients.get( i ).encryptWithPublicKey( keyAndIv );
+            length += AsymmetricCrypto.KEY_ID_BYTES + 2 + encKeys[i].length;
+        }
+
+        ByteBuffer encBundle = ByteBuffer.allocate( length );
+        putHeader( encBundle, BUNDLE_V4, gcm, null );
+        encBundle.putShort( (short) recipients.size() );
+        for ( int i = 0; i < recipients.size(); i++ ) {
+            encBundle.put( ids[i] );
+            encBundle.putShort( (short) encKeys[i].length );
+            encBundle.put( encKeys[i] );
+        }
+        byte[] aad = gcm ? Arrays.copyOf( encBundle.array(), encBundle.position() ) : null;
+        encryptData( ByteBuffer.wrap( data ), encBundle, dataKey, aad );
+        return encBundle.array();
+    }
+
+    /**
+     * Split the items into slices and encrypt or decrypt every slice in a task of the executor.
+     *
+     * @param withKey
+     *            Whether to use the public key for encrypting, or the private key for decrypting.
+     */
+    private List<BatchResult> runAll( final List<byte[]> items, final boolean encrypt, final boolean withKey )
+            throws CryptoException {
+        final BatchResult[] results = new BatchResult[items.size()];
+        if ( items.isEmpty() ) {
+            return Arrays.asList( results );
+        }
+        ExecutorService exec = executor != null ? executor : ForkJoinPool.commonPool();
+        int tasks = getParallelism( exec ) * BATCH_TASKS_PER_THREAD;
+        int grain = Math.max( 1, ( items.size() + tasks - 1 ) / tasks );
+
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for ( int lo = 0; lo < items.size(); lo += grain ) {
+            final int from = lo;
+            final int to = Math.min( items.size(), lo + grain );
+            futures.add( exec.submit( new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for ( int i = from; i < to; i++ ) {
+                        results[i] = runOne( items.get( i ), encrypt, withKey );
+                    }
+                    return null;
+                }
+            } ) );
+        }
+
+        try {
+            for ( Future<?> future : futures ) {
+                future.get();
+            }
+        } catch ( InterruptedException e ) {
+            for ( Future<?> future : futures ) {
+                future.cancel( true );
+            }
+            Thread.currentThread().interrupt();
+            throw new CryptoException( e );
+        } catch ( ExecutionException e ) {
+            // runOne catches everything, so only an Error gets here.
+            throw new CryptoException( e );
+        }
+        return Arrays.asList( results );
+    }
+
+    /**
+     * The number of threads the executor runs tasks on, or the number of processors if the
+     * executor doesn't tell or has no practical bound.
+     */
+    static int getParallelism( ExecutorService exec ) {
+        int processors = Runtime.getRuntime().availableProcessors();
+        int threads = processors;
+        if ( exec instanceof ForkJoinPool ) {
+            threads = ( (ForkJoinPool) exec ).getParallelism();
+        } else if ( exec instanceof ThreadPoolExecutor ) {
+            threads = ( (ThreadPoolExecutor) exec ).getMaximumPoolSize();
+            if ( threads > processors * BATCH_TASKS_PER_THREAD ) {
+                // E.g. a cached thread pool: more threads than processors don't help.
+                threads = processors;
+            }
+        }
+        return Math.max( 1, threads );
+    }
+
+    private BatchResult runOne( byte[] item, boolean encrypt, boolean withKey ) {
+        try {
+            return new BatchResult( encrypt ? encrypt( item, withKey ) : decrypt( item, 0, item.length, withKey ), null );
+        } catch ( CryptoException e ) {
+            return new BatchResult( null, e );
+        } catch ( RuntimeException e ) {
+            return new BatchResult( null, new CryptoException( e ) );
+        }
+    }
+
+    private byte[] encrypt( byte[] data, boolean withPublicKey )
+            throws CryptoException {
+        int version = getEncryptVersion();
+        boolean gcm = isGcm( version );
+        byte[] encBundle = new byte[getBundleSize( version, gcm, data.length )];
+        encrypt( ByteBuffer.wrap( data ), ByteBuffer.wrap( encBundle ), version, gcm, withPublicKey );
         return encBundle;
     }
+
+    private int encrypt( ByteBuffer src, ByteBuffer dst, boolean withPublicKey )
+            throws CryptoException {
+        int version = getEncryptVersion();
+        return encrypt( src, dst, version, isGcm( version ), withPublicKey );
+    }
+
+    /**
+     * Write the bundle straight into <tt>dst</tt>: the encrypted key material first and then the
+     * encrypted data.
+     */
+    private int encrypt( ByteBuffer src, ByteBuffer dst, int version, boolean gcm, boolean withPublicKey )
+            throws CryptoException {
+        int size = getBundleSize( version, gcm, src.remaining() );
+        if ( dst.remaining() < size ) {
+            throw new CryptoException( "The output buffer is too small: " + dst.remaining() + " < " + size );
+        }
+
+        ByteBuffer header = ByteBuffer.allocate( getKeyMaterialSize( version, gcm ) );
+        DataKey dataKey = putDataKey( header, version, gcm, withPublicKey );
+        dst.put( header.array() );
+        encryptData( src, dst, dataKey, header.array() );
+        return size;
+    }
+
+    private long encrypt( InputStream in, OutputStream out, boolean withPublicKey )
+            throws CryptoException, IOException {
+        int version = getEncryptVersion();
+        boolean gcm = isGcm( version );
+        ByteBuffer header = ByteBuffer.allocate( getKeyMaterialSize( version, gcm ) );
+        DataKey dataKey = putDataKey( header, version, gcm, withPublicKey );
+        out.write( header.array() );
+        return header.capacity() + encryptData( in, out, dataKey, header.array() );
+    }
+
+    /**
+     * Create or reuse a data key, and write everything that comes before the encrypted data in a
+     * bundle of the given version.
+     *
+     * @return The data key.
+     */
+    private DataKey putDataKey( ByteBuffer dst, int version, boolean gcm, boolean withPublicKey )
+            throws CryptoException {
+        byte[] iv = newIv( gcm );
+        SecretKey key;
+        if ( version == BUNDLE_V3 ) {
+            DataKeyWindow window = getDataKeyWindow( withPublicKey );
+            key = window.key;
+            putHeader( dst, BUNDLE_V3, gcm, getHeaderKeyId() );
+            dst.put( window.encKey );
+            dst.put( iv );
+        } else if ( version == BUNDLE_V2 ) {
+            key = symmetric.getRandomKey();
+            byte[] encKeyAndIv = wrap( joinKeyAndIv( key, iv ), withPublicKey );
+            putHeader( dst, BUNDLE_V2, gcm, getHeaderKeyId() );
+            dst.put( encKeyAndIv );
+        } else {
+            key = symmetric.getRandomKey();
+            byte[] encKey = wrap( key.getEncoded(), withPublicKey );
+            byte[] encIv = wrap( iv, withPublicKey );
+            dst.put( encIv );
+            dst.put( encKey );
+        }
+        return new DataKey( key, iv, gcm );
+    }
+
+    private byte[] newIv( boolean gcm ) {
+        if ( gcm ) {
+            return symmetric.getRandomGcmParameters( SymmetricCrypto.GCM_TAG_BITS ).getIV();
+        }
+        return symmetric.getRandomIV().getIV();
+    }
+
+    /**
+     * Encrypt the data with the data key. With AES-GCM the header of the bundle is authenticated
+     * together with the data.
+     */
+    private int encryptData( ByteBuffer src, ByteBuffer dst, DataKey dataKey, byte[] header )
+            throws CryptoException {
+        if ( dataKey.gcm ) {
+            return symmetric.encryptGcm( src, dst, header, dataKey.key, dataKey.getGcmParameters() );
+        }
+        return symmetric.encrypt( src, dst, dataKey.key, symmetric.getIvFromBytes( dataKey.iv ) );
+    }
+
+    private long encryptData( InputStream in, OutputStream out, DataKey dataKey, byte[] header )
+            throws CryptoException, IOException {
+        if ( dataKey.gcm ) {
+            return symmetric.encryptGcm( in, out, header, dataKey.key, dataKey.getGcmParameters() );
+        }
+        return symmetric.encrypt( in, out, dataKey.key, symmetric.getIvFromBytes( dataKey.iv ) );
+    }
+
+    private byte[] decryptData( byte[] encData, int offset, int length, DataKey dataKey, byte[] header )
+            throws CryptoException {
+        if ( dataKey.gcm ) {
+            return symmetric.decryptGcm( encData, offset, length, header, dataKey.key, dataKey.getGcmParameters() );
+        }
+        return symmetric.decrypt( encData, offset, length, dataKey.key, symmetric.getIvFromBytes( dataKey.iv ) );
+    }
+
+    private long decryptData( InputStream in, OutputStream out, DataKey dataKey, byte[] header )
+            throws CryptoException, IOException {
+        if ( dataKey.gcm ) {
+            return symmetric.decryptGcm( in, out, header, dataKey.key, dataKey.getGcmParameters() );
+        }
+        return symmetric.decrypt( in, out, dataKey.key, symmetric.getIvFromBytes( dataKey.iv ) );
+    }
+
+    /**
+     * @return The layout of the bundles created by the encrypt methods with the current settings.
+     */
+    private int getEncryptVersion() {
+        if ( dataKeyMaxMessages > 0 ) {
+            return BUNDLE_V3;
+        }
+        // A V1 bundle has no header to flag AES-GCM or hold the key id in.
+        return ( authenticated || keyIdHeader ) && bundleVersion == BUNDLE_V1 ? BUNDLE_V2 : bundleVersion;
+    }
+
+    /**
+     * @return The key id to put in the header of a {@link #BUNDLE_V2} or {@link #BUNDLE_V3}
+     *         bundle, or <tt>null</tt>.
+     */
+    private byte[] getHeaderKeyId() {
+        return keyIdHeader ? asymmetric.getKeyId() : null;
+    }
+
+    private boolean isGcm( int version ) {
+        return authenticated && version != BUNDLE_V1;
+    }
+
+    private int getBundleSize( int version, boolean gcm, int dataLength ) {
+        return getKeyMaterialSize( version, gcm ) + getDataSize( gcm, dataLength );
+    }
+
+    private int getDataSize( boolean gcm, int dataLength ) {
+        if ( gcm ) {
+            return dataLength + SymmetricCrypto.GCM_TAG_BITS / 8;
+        }
+        return symmetric.getOutputSize( Cipher.ENCRYPT_MODE, dataLength );
+    }
+
+    /**
+     * @return The number of bytes before the encrypted data in a bundle of the given version.
+     */
+    private int getKeyMaterialSize( int version, boolean gcm ) {
+        switch ( version ) {
+        case BUNDLE_V1:
+            return asymmetric.getKeySizeBytes() * 2;
+        case BUNDLE_V2:
+            return BUNDLE_HEADER_BYTES + getKeyIdBytes() + asymmetric.getKeySizeBytes();
+        default:
+            return BUNDLE_HEADER_BYTES + getKeyIdBytes() + asymmetric.getKeySizeBytes() + getIvBytes( gcm );
+        }
+    }
+
+    private int getKeyIdBytes() {
+        return keyIdHeader ? AsymmetricCrypto.KEY_ID_BYTES : 0;
+    }
+
+    private static int getIvBytes( boolean gcm ) {
+        return gcm ? SymmetricCrypto.GCM_IV_BYTES : IV_BYTES;
+    }
+
+    private byte[] decrypt( ByteBuffer encBundle, boolean withPrivateKey )
+            throws CryptoException {
+        byte[] array;
+        int offset;
+        int length = encBundle.remaining();
+        if ( encBundle.hasArray() ) {
+            array = encBundle.array();
+            offset = encBundle.arrayOffset() + encBundle.position();
+            encBundle.position( encBundle.limit() );
+        } else {
+            array = new byte[length];
+            offset = 0;
+            encBundle.get( array );
+        }
+        return decrypt( array, offset, length, withPrivateKey );
+    }
+
+    private byte[] decrypt( byte[] encBundle, int offset, int length, boolean withPrivateKey )
+            throws CryptoException {
+        if ( hasBundleHeader( encBundle, offset, length ) ) {
+            try {
+                return decryptWithHeader( encBundle, offset, length, withPrivateKey );
+            } catch ( InvalidHeaderException e ) {
+                // A V1 bundle starts with encrypted data, which can happen to look like a header.
+                if ( !isBundleV1Length( length ) ) {
+                    throw e;
+                }
+                LOG.debug( "Not a versioned bundle, trying V1: {}", e.getMessage() );
+            }
+        }
+        return decryptV1( encBundle, offset, length, withPrivateKey );
+    }
+
+    private byte[] decryptV1( byte[] encBundle, int offset, int length, boolean withPrivateKey )
+            throws CryptoException {
+        int keySize = asymmetric.getKeySizeBytes();
+        if ( length < keySize * 2 ) {
+            throw new CryptoException( "Bundle is too short." );
+        }
+        DataKey dataKey = readDataKeyV1( Arrays.copyOfRange( encBundle, offset, offset + keySize * 2 ), withPrivateKey );
+        return decryptData( encBundle, offset + keySize * 2, length - keySize * 2, dataKey, null );
+    }
+
+    private byte[] decryptWithHeader( byte[] encBundle, int offset, int length, boolean withPrivateKey )
+            throws CryptoException {
+        ByteBuffer buf = ByteBuffer.wrap( encBundle, offset, length );
+        DataKey dataKey = readDataKey( buf, withPrivateKey );
+        byte[] header = dataKey.gcm ? Arrays.copyOfRange( encBundle, offset, buf.position() ) : null;
+        return decryptData( encBundle, buf.position(), buf.remaining(), dataKey, header );
+    }
+
+    private long decrypt( InputStream in, OutputStream out, boolean withPrivateKey )
+            throws CryptoException, IOException {
+        int keySize = asymmetric.getKeySizeBytes();
+        PushbackInputStream pin = new PushbackInputStream( in, keySize * 2 );
+        ByteArrayOutputStream header = new ByteArrayOutputStream( keySize * 2 );
+        readFully( pin, header, BUNDLE_HEADER_BYTES );
+        byte[] prefix = header.toByteArray();
+
+        if ( hasBundleHeader( prefix, 0, prefix.length ) ) {
+            DataKey dataKey = null;
+            try {
+                readHeader( pin, header, prefix[BUNDLE_MAGIC.length], prefix[BUNDLE_MAGIC.length + 1] );
+                dataKey = readDataKey( ByteBuffer.wrap( header.toByteArray() ), withPrivateKey );
+            } catch ( InvalidHeaderException e ) {
+                // A V1 bundle starts with encrypted data, which can happen to look like a header.
+                if ( header.size() > keySize * 2 ) {
+                    throw e;
+                }
+                LOG.debug( "Not a versioned bundle, trying V1: {}", e.getMessage() );
+            }
+            if ( dataKey != null ) {
+                return decryptData( pin, out, dataKey, header.toByteArray() );
+            }
+        }
+
+        pin.unread( header.toByteArray() );
+        header.reset();
+        readFully( pin, header, keySize * 2 );
+        DataKey dataKey = readDataKeyV1( header.toByteArray(), withPrivateKey );
+        return decryptData( pin, out, dataKey, null );
+    }
+
+    /**
+     * Read the rest of the header of a bundle with the given version from the stream, so that the
+     * stream is positioned at the encrypted data.
+     *
+     * @param header
+     *            Holds the bytes of the header read so far, the bytes read are added to it.
+     */
+    private void readHeader( InputStream in, ByteArrayOutputStream header, int version, int flags )
+            throws CryptoException, IOException {
+        int keySize = asymmetric.getKeySizeBytes();
+        if ( ( flags & BUNDLE_FLAG_KEY_ID ) != 0 && ( version == BUNDLE_V2 || version == BUNDLE_V3 ) ) {
+            readFully( in, header, AsymmetricCrypto.KEY_ID_BYTES );
+        }
+        if ( version == BUNDLE_V2 ) {
+            readFully( in, header, keySize );
+        } else if ( version == BUNDLE_V3 ) {
+            readFully( in, header, keySize + getIvBytes( ( flags & BUNDLE_FLAG_GCM ) != 0 ) );
+        } else if ( version == BUNDLE_V4 ) {
+            int count = ByteBuffer.wrap( readFully( in, header, 2 ) ).getShort() & 0xFFFF;
+            for ( int i = 0; i < count; i++ ) {
+                byte[] entry = readFully( in, header, AsymmetricCrypto.KEY_ID_BYTES + 2 );
+                int length = ByteBuffer.wrap( entry, AsymmetricCrypto.KEY_ID_BYTES, 2 ).getShort() & 0xFFFF;
+                readFully( in, header, length );
+            }
+        } else {
+            throw new InvalidHeaderException( "Unsupported bundle version " + version );
+        }
+    }
+
+    /**
+     * Read <tt>length</tt> bytes from the stream and add them to <tt>header</tt>.
+     *
+     * @return The bytes read.
+     */
+    private static byte[] readFully( InputStream in, ByteArrayOutputStream header, int length )
+            throws CryptoException, IOException {
+        byte[] buf = new byte[length];
+        int total = 0;
+        while ( total < length ) {
+            int read = in.read( buf, total, length - total );
+            if ( read == -1 ) {
+                header.write( buf, 0, total );
+                throw new InvalidHeaderException( "Bundle is too short." );
+            }
+            total += read;
+        }
+        header.write( buf, 0, length );
+        return buf;
+    }
+
+    /**
+     * Decrypt the key and IV of a {@link #BUNDLE_V1} bundle.
+     *
+     * @param encIvAndKey
+     *            The first two key sized blocks of the bundle.
+     */
+    private DataKey readDataKeyV1( byte[] encIvAndKey, boolean withPrivateKey )
+            throws CryptoException {
+        int keySize = asymmetric.getKeySizeBytes();
+        byte[] encIv = Arrays.copyOfRange( encIvAndKey, 0, keySize );
+        byte[] encKey = Arrays.copyOfRange( encIvAndKey, keySize, keySize * 2 );
+        return new DataKey( symmetric.getKeyFromBytes( unwrap( encKey, withPrivateKey ) ),
+                            unwrap( encIv, withPrivateKey ), false );
+    }
+
+    /**
+     * Read the header of a versioned bundle and decrypt its key and IV, leaving the buffer
+     * positioned at the encrypted data.
+     *
+     * @throws InvalidHeaderException
+     *             If the header can not be parsed, before any asymmetric operation.
+     * @throws CryptoException
+     *             If the header is valid, but the key can not be decrypted with this key pair.
+     */
+    private DataKey readDataKey( ByteBuffer buf, boolean withPrivateKey )
+            throws CryptoException {
+        buf.position( buf.position() + BUNDLE_MAGIC.length );
+        int version;
+        int flags;
+        byte[] keyId = null;
+        byte[] encKey;
+        byte[] ivBytes;
+        try {
+            version = buf.get();
+            flags = buf.get();
+            if ( !isSupported( version, flags ) ) {
+                throw new InvalidHeaderException( "Unsupported bundle version " + version + " with flags " + flags );
+            }
+            if ( ( flags & BUNDLE_FLAG_KEY_ID ) != 0 ) {
+                keyId = new byte[AsymmetricCrypto.KEY_ID_BYTES];
+                buf.get( keyId );
+            }
+            ivBytes = new byte[getIvBytes( ( flags & BUNDLE_FLAG_GCM ) != 0 )];
+            if ( version == BUNDLE_V4 ) {
+                encKey = readRecipientKey( buf, asymmetric.getKeyId() );
+            } else {
+                encKey = new byte[asymmetric.getKeySizeBytes()];
+                buf.get( encKey );
+                if ( version == BUNDLE_V3 ) {
+                    buf.get( ivBytes );
+                }
+            }
+        } catch ( BufferUnderflowException e ) {
+            throw new InvalidHeaderException( "Bundle is too short." );
+        } catch ( IllegalArgumentException e ) {
+            // A recipient length past the end of the bundle.
+            throw new InvalidHeaderException( "Bundle is too short." );
+        }
+
+        // The header is valid, every failure from here on is final.
+        if ( keyId != null && !Arrays.equals( keyId, asymmetric.getKeyId() ) ) {
+            // Fail before the asymmetric operation, which could only fail.
+            throw new CryptoException( "The bundle is not encrypted for this key." );
+        }
+        if ( encKey == null ) {
+            throw new CryptoException( "The bundle is not encrypted for this key." );
+        }
+        if ( version == BUNDLE_V4 && !withPrivateKey ) {
+            throw new CryptoException( "A multi-recipient bundle can only be decrypted with a private key." );
+        }
+        byte[] unwrapped = unwrap( encKey, withPrivateKey );
+
+        byte[] keyBytes;
+        if ( version == BUNDLE_V3 ) {
+            keyBytes = unwrapped;
+        } else {
+            if ( unwrapped.length < ivBytes.length ) {
+                throw new CryptoException( "Bundle holds an invalid key." );
+            }
+            keyBytes = Arrays.copyOf( unwrapped, unwrapped.length - ivBytes.length );
+            System.arraycopy( unwrapped, keyBytes.length, ivBytes, 0, ivBytes.length );
+        }
+        if ( keyBytes.length != 16 && keyBytes.length != 24 && keyBytes.length != 32 ) {
+            throw new CryptoException( "Bundle holds an invalid key." );
+        }
+        return new DataKey( symmetric.getKeyFromBytes( keyBytes ), ivBytes, ( flags & BUNDLE_FLAG_GCM ) != 0 );
+    }
+
+    private static boolean isSupported( int version, int flags ) {
+        if ( version < BUNDLE_V2 || version > BUNDLE_V4 || ( flags & ~( BUNDLE_FLAG_GCM | BUNDLE_FLAG_KEY_ID ) ) != 0 ) {
+            return false;
+        }
+        // The recipient table of a V4 bundle holds the key ids.
+        return version != BUNDLE_V4 || ( flags & BUNDLE_FLAG_KEY_ID ) == 0;
+    }
+
+    /**
+     * Get the key ids a bundle names without decrypting anything: the key id in the header, or the
+     * key ids of all recipients of a {@link #BUNDLE_V4} bundle.
+     *
+     * @return The key ids, empty if the bundle names none, e.g. a {@link #BUNDLE_V1} bundle.
+     */
+    static List<byte[]> getKeyIds( byte[] encBundle, int offset, int length ) {
+        List<byte[]> ids = new ArrayList<byte[]>();
+        if ( !hasBundleHeader( encBundle, offset, length ) ) {
+            return ids;
+        }
+        ByteBuffer buf = ByteBuffer.wrap( encBundle, offset + BUNDLE_MAGIC.length, length - BUNDLE_MAGIC.length );
+        try {
+            int version = buf.get();
+            int flags = buf.get();
+            if ( !isSupported( version, flags ) ) {
+                return ids;
+            }
+            if ( ( flags & BUNDLE_FLAG_KEY_ID ) != 0 ) {
+                byte[] id = new byte[AsymmetricCrypto.KEY_ID_BYTES];
+                buf.get( id );
+                ids.add( id );
+            } else if ( version == BUNDLE_V4 ) {
+                int count = buf.getShort() & 0xFFFF;
+                for ( int i = 0; i < count; i++ ) {
+                    byte[] id = new byte[AsymmetricCrypto.KEY_ID_BYTES];
+                    buf.get( id );
+                    ids.add( id );
+                    buf.position( buf.position() + ( buf.getShort() & 0xFFFF ) );
+                }
+            }
+        } catch ( BufferUnderflowException e ) {
+            // Most likely a V1 bundle that looks like it has a header.
+            ids.clear();
+        } catch ( IllegalArgumentException e ) {
+            // A recipient length past the end, same as above.
+            ids.clear();
+        }
+        return ids;
+    }
+
+    /**
+     * Read the recipient table of a {@link #BUNDLE_V4} bundle, leaving the buffer positioned at the
+     * encrypted data.
+     *
+     * @return The encrypted key and IV of the recipient with the given key id, or <tt>null</tt>.
+     */
+    private static byte[] readRecipientKey( ByteBuffer buf, byte[] keyId ) {
+        int count = buf.getShort() & 0xFFFF;
+        byte[] found = null;
+        byte[] id = new byte[AsymmetricCrypto.KEY_ID_BYTES];
+        for ( int i = 0; i < count; i++ ) {
+            buf.get( id );
+            int length = buf.getShort() & 0xFFFF;
+            if ( found == null && Arrays.equals( id, keyId ) ) {
+                found = new byte[length];
+                buf.get( found );
+            } else {
+                buf.position( buf.position() + length );
+            }
+        }
+        return found;
+    }
+
+    private static byte[] joinKeyAndIv( SecretKey key, byte[] iv ) {
+        byte[] keyBytes = key.getEncoded();
+        byte[] keyAndIv = new byte[keyBytes.length + iv.length];
+        System.arraycopy( keyBytes, 0, keyAndIv, 0, keyBytes.length );
+        System.arraycopy( iv, 0, keyAndIv, keyBytes.length, iv.length );
+        return keyAndIv;
+    }
+
+    /**
+     * Get the data key window to encrypt the next message with, starting a new one if the current
+     * window is used up or too old.
+     */
+    private DataKeyWindow getDataKeyWindow( boolean withPublicKey )
+            throws CryptoException {
+        AtomicReference<DataKeyWindow> ref = withPublicKey ? publicKeyWindow : privateKeyWindow;
+        DataKeyWindow window = ref.get();
+        if ( window != null && window.tryUse( dataKeyMaxMessages, dataKeyMaxAgeNanos ) ) {
+            return window;
+        }
+        synchronized ( ref ) {
+            // Another thread may have started a new window in the mean time.
+            window = ref.get();
+            if ( window != null && window.tryUse( dataKeyMaxMessages, dataKeyMaxAgeNanos ) ) {
+                return window;
+            }
+            SecretKey key = symmetric.getRandomKey();
+            window = new DataKeyWindow( key, wrap( key.getEncoded(), withPublicKey ) );
+            ref.set( window );
+            return window;
+        }
+    }
+
+    private byte[] wrap( byte[] data, boolean withPublicKey )
+            throws CryptoException {
+        if ( withPublicKey ) {
+            return asymmetric.encryptWithPublicKey( data );
+        }
+        return asymmetric.encryptWithPrivateKey( data );
+    }
+
+    private byte[] unwrap( byte[] data, boolean withPrivateKey )
+            throws CryptoException {
+        SessionKeyCache cache = sessionKeyCache;
+        if ( cache == null ) {
+            return unwrapWithKey( data, withPrivateKey );
+        }
+        ByteBuffer digest = SessionKeyCache.digest( asymmetric.getKeyId(), data, withPrivateKey );
+        byte[] unwrapped = cache.get( digest );
+        if ( unwrapped == null ) {
+            unwrapped = unwrapWithKey( data, withPrivateKey );
+            cache.put( digest, unwrapped );
+        }
+        return unwrapped;
+    }
+
+    private byte[] unwrapWithKey( byte[] data, boolean withPrivateKey )
+            throws CryptoException {
+        if ( withPrivateKey ) {
+            return asymmetric.decryptWithPrivateKey( data );
+        }
+        return asymmetric.decryptWithPublicKey( data );
+    }
+
+    private static boolean hasBundleHeader( byte[] encBundle, int offset, int length ) {
+        if ( length < BUNDLE_HEADER_BYTES ) {
+            return false;
+        }
+        for ( int i = 0; i < BUNDLE_MAGIC.length; i++ ) {
+            if ( encBundle[offset + i] != BUNDLE_MAGIC[i] ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A V1 bundle holds two key sized blocks followed by at least one AES block.
+     */
+    private boolean isBundleV1Length( int length ) {
+        int dataLength = length - asymmetric.getKeySizeBytes() * 2;
+        return dataLength > 0 && dataLength % SymmetricCrypto.ALGORITHM_BLOCK_BYTES == 0;
+    }
+
+    /**
+     * @param keyId
+     *            The key id to put after the flags, or <tt>null</tt>.
+     */
+    private static void putHeader( ByteBuffer encBundle, int version, boolean gcm, byte[] keyId ) {
+        encBundle.put( BUNDLE_MAGIC );
+        encBundle.put( (byte) version );
+        encBundle.put( (byte) ( ( gcm ? BUNDLE_FLAG_GCM : 0 ) | ( keyId != null ? BUNDLE_FLAG_KEY_ID : 0 ) ) );
+        if ( keyId != null ) {
+            encBundle.put( keyId );
+        }
+    }
+
+    /**
+     * Thrown when the start of a bundle does not parse as a versioned header, in which case it may
+     * still be a {@link #BUNDLE_V1} bundle. Failures after the header parsed are not retried as V1,
+     * so they are reported as they are, e.g. a wrong key or a modified AES-GCM bundle.
+     */
+    private static class InvalidHeaderException extends CryptoException {
+
+        private static final long serialVersionUID = 1L;
+
+        InvalidHeaderException( String msg ) {
+            super( msg );
+        }
+    }
+
+    /**
+     * The key and IV the data of a bundle is encrypted with.
+     */
+    private static class DataKey {
+
+        private final SecretKey key;
+        private final byte[] iv;
+        private final boolean gcm;
+
+        DataKey( SecretKey key, byte[] iv, boolean gcm ) {
+            this.key = key;
+            this.iv = iv;
+            this.gcm = gcm;
+        }
+
+        GCMParameterSpec getGcmParameters() {
+            return new GCMParameterSpec( SymmetricCrypto.GCM_TAG_BITS, iv );
+        }
+    }
+
+    /**
+     * A data key that is used for several messages, together with its asymmetrically encrypted
+     * form.
+     */
+    private static class DataKeyWindow {
+
+        private final SecretKey key;
+        private final byte[] encKey;
+        private final long created = System.nanoTime();
+        // The creating message counts as the first use.
+        private final AtomicInteger uses = new AtomicInteger( 1 );
+
+        DataKeyWindow( SecretKey key, byte[] encKey ) {
+            this.key = key;
+            this.encKey = encKey;
+        }
+
+        boolean tryUse( int maxMessages, long maxAgeNanos ) {
+            if ( System.nanoTime() - created > maxAgeNanos ) {
+                return false;
+            }
+            return uses.incrementAndGet() <= maxMessages;
+        }
+    }
 }
@@ -0,0 +1,305 @@
+package org.cujau.crypto;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A bounded cache of {@link AsymmetricCrypto} instances, one per tenant, loaded on first use.
+ * <p>
+ * The cache is bounded by the total weight of the held instances, by default an estimate of the
+ * memory of their keys and pooled ciphers, and evicts the least recently used tenants when a new one
+ * does not fit. Concurrent lookups of a tenant that is not cached share a single load. This class
+ * is thread safe.
+ */
+public class KeyRegistry {
+
+    /**
+     * The number of idle ciphers the cached instances keep per key and mode, see
+     * {@link AsymmetricCrypto#setMaxIdleCiphers(int)}. Most tenants are only used by a few threads
+     * at the same time, so they don't need the default pool size.
+     */
+    public static final int MAX_IDLE_CIPHERS = 4;
+
+    /**
+     * Loads the keys of a tenant.
+     */
+    public interface Loader {
+
+        /**
+         * The registry only takes the keys of the returned instance, it caches an instance of its
+         * own that keeps at most {@link KeyRegistry#MAX_IDLE_CIPHERS} idle ciphers. The returned
+         * instance may be shared and is not changed.
+         *
+         * @return The keys of the tenant, never <tt>null</tt>.
+         * @throws CryptoException
+         *             If the keys can not be loaded.
+         */
+        AsymmetricCrypto load( String tenantId )
+                throws CryptoException;
+    }
+
+    private final Loader loader;
+    private final long maxWeight;
+    // Access order, so that the eldest entry is the least recently used.
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>( 16, 0.75f, true );
+    // Guarded by this for removal, so that a load can check under the lock that it was not
+    // invalidated.
+    private final ConcurrentHashMap<String, FutureTask<AsymmetricCrypto>> loading =
+        new ConcurrentHashMap<String, FutureTask<AsymmetricCrypto>>();
+
+    private long weight;
+    private long hits;
+    private long misses;
+    private long loads;
+    private long loadFailures;
+    private long evictions;
+
+    /**
+     * @param loader
+     *            Loads the keys of a tenant that is not cached.
+     * @param maxWeight
+     *            The maximum total weight, see {@link #weigh(AsymmetricCrypto)}.
+     */
+    public KeyRegistry( Loader loader, long maxWeight ) {
+        if ( maxWeight <= 0 ) {
+            throw new IllegalArgumentException( "The maximum weight must be positive: " + maxWeight );
+        }
+        this.loader = loader;
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     * Get the keys of a tenant, loading them if they are not cached. If other threads are already
+     * loading the tenant, wait for their load instead of starting another.
+     *
+     * @throws CryptoException
+     *             If the keys can not be loaded. The failure is not cached.
+     */
+    public AsymmetricCrypto get( String tenantId )
+            throws CryptoException {
+        AsymmetricCrypto cry = getCached( tenantId );
+        if ( cry != null ) {
+            return cry;
+        }
+        FutureTask<AsymmetricCrypto> task = new Load( tenantId ).task;
+        FutureTask<AsymmetricCrypto> running = loading.putIfAbsent( tenantId, task );
+        if ( running == null ) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                removeLoading( tenantId, task );
+            }
+        }
+        try {
+            return running.get();
+        } catch ( ExecutionException e ) {
+            if ( e.getCause() instanceof CryptoException ) {
+                throw (CryptoException) e.getCause();
+            }
+            throw new CryptoException( e );
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new CryptoException( e );
+        }
+    }
+
+    /**
+     * Drop the cached keys of a tenant, e.g. after its keys were rotated. A load of the tenant that
+     * is in flight is not cached when it finishes, the next lookup loads the keys again.
+     */
+    public synchronized void invalidate( String tenantId ) {
+        loading.remove( tenantId );
+        Entry entry = entries.remove( tenantId );
+        if ( entry != null ) {
+            weight -= entry.weight;
+        }
+    }
+
+    /**
+     * Drop all cached keys, including the loads in flight, see {@link #invalidate(String)}.
+     */
+    public synchronized void clear() {
+        loading.clear();
+        entries.clear();
+        weight = 0;
+    }
+
+    /**
+     * @return The number of cached tenants.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return The total weight of the cached tenants.
+     */
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return The number of lookups that did not find the tenant cached, including those that
+     *         waited for another thread's load.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return The number of times the loader was called.
+     */
+    public synchronized long getLoads() {
+        return loads;
+    }
+
+    public synchronized long getLoadFailures() {
+        return loadFailures;
+    }
+
+    /**
+     * @return The number of tenants removed to keep the cache within its maximum weight.
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * The weight of a tenant's keys, by default the size of the encoded public and private keys,
+     * plus the key size for each cipher the instance may keep idle, which is roughly what an
+     * initialized RSA cipher holds on to. Override to weigh by another measure, e.g. <tt>1</tt> to
+     * bound the number of tenants.
+     */
+    protected long weigh( AsymmetricCrypto cry ) {
+        long w = 0;
+        int pools = 0;
+        if ( cry.getPublicKey() != null && cry.getPublicKey().getEncoded() != null ) {
+            w += cry.getPublicKey().getEncoded().length;
+            pools += 2;
+        }
+        if ( cry.getPrivateKey() != null && cry.getPrivateKey().getEncoded() != null ) {
+            w += cry.getPrivateKey().getEncoded().length;
+            pools += 2;
+        }
+        w += (long) pools * cry.getMaxIdleCiphers() * cry.getKeySizeBytes();
+        return Math.max( 1, w );
+    }
+
+    private synchronized AsymmetricCrypto getCached( String tenantId ) {
+        Entry entry = entries.get( tenantId );
+        if ( entry == null ) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.cry;
+    }
+
+    /**
+     * Look up without counting a hit or miss.
+     */
+    private synchronized AsymmetricCrypto peek( String tenantId ) {
+        Entry entry = entries.get( tenantId );
+        return entry == null ? null : entry.cry;
+    }
+
+    private synchronized void removeLoading( String tenantId, FutureTask<AsymmetricCrypto> task ) {
+        loading.remove( tenantId, task );
+    }
+
+    private AsymmetricCrypto load( String tenantId, FutureTask<AsymmetricCrypto> task )
+            throws CryptoException {
+        AsymmetricCrypto loaded;
+        try {
+            loaded = loader.load( tenantId );
+        } catch ( CryptoException e ) {
+            countLoad( false );
+            throw e;
+        } catch ( RuntimeException e ) {
+            countLoad( false );
+            throw e;
+        }
+        countLoad( true );
+        AsymmetricCrypto cry = new AsymmetricCrypto();
+        cry.setMaxIdleCiphers( MAX_IDLE_CIPHERS );
+        cry.setPublicKey( loaded.getPublicKey() );
+        cry.setPrivateKey( loaded.getPrivateKey() );
+        // Weigh outside the lock, getEncoded() copies the keys.
+        put( tenantId, task, cry, weigh( cry ) );
+        return cry;
+    }
+
+    private synchronized void countLoad( boolean success ) {
+        loads++;
+        if ( !success ) {
+            loadFailures++;
+        }
+    }
+
+    private synchronized void put( String tenantId, FutureTask<AsymmetricCrypto> task, AsymmetricCrypto cry, long w ) {
+        if ( loading.get( tenantId ) != task ) {
+            // Invalidated while loading, the keys may be stale.
+            return;
+        }
+        Entry old = entries.put( tenantId, new Entry( cry, w ) );
+        if ( old != null ) {
+            weight -= old.weight;
+        }
+        weight += w;
+        // Evict the least recently used, but always keep the newest entry.
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while ( weight > maxWeight && entries.size() > 1 ) {
+            Map.Entry<String, Entry> eldest = it.next();
+            it.remove();
+            weight -= eldest.getValue().weight;
+            evictions++;
+        }
+    }
+
+    /**
+     * A load of a tenant's keys, which knows its task so that it can tell whether it was
+     * invalidated.
+     */
+    private class Load implements Callable<AsymmetricCrypto> {
+
+        private final String tenantId;
+        private final FutureTask<AsymmetricCrypto> task = new FutureTask<AsymmetricCrypto>( this );
+
+        Load( String tenantId ) {
+            this.tenantId = tenantId;
+        }
+
+        @Override
+        public AsymmetricCrypto call()
+                throws CryptoException {
+            // Another load may have finished between the lookup and this task winning.
+            AsymmetricCrypto cached = peek( tenantId );
+            return cached != null ? cached : load( tenantId, task );
+        }
+    }
+
+    private static class Entry {
+
+        private final AsymmetricCrypto cry;
+        private final long weight;
+
+        Entry( AsymmetricCrypto cry, long weight ) {
+            this.cry = cry;
+            this.weight = weight;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package org.cujau.crypto;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A set of asymmetric keys looked up by their {@link AsymmetricCrypto#getKeyId() key id}, e.g.
+ * the old and the new keys during a key rotation. One of the keys is the primary key, the one new
+ * data is encrypted with. This class is thread safe.
+ *
+ * @see KeyRingHybridCrypto
+ */
+public class KeyRing {
+
+    private final ConcurrentHashMap<ByteBuffer, AsymmetricCrypto> keys =
+        new ConcurrentHashMap<ByteBuffer, AsymmetricCrypto>();
+    private volatile AsymmetricCrypto primary;
+
+    /**
+     * Add a key, replacing any key with the same key id.
+     *
+     * @param cry
+     *            The key, with its public or private key set.
+     */
+    public void add( AsymmetricCrypto cry ) {
+        byte[] keyId = cry.getKeyId();
+        if ( keyId == null ) {
+            throw new IllegalArgumentException( "The key has no key id, set its public or private key first." );
+        }
+        keys.put( ByteBuffer.wrap( keyId ), cry );
+    }
+
+    /**
+     * Add a key and make it the primary key.
+     */
+    public void setPrimary( AsymmetricCrypto cry ) {
+        add( cry );
+        primary = cry;
+    }
+
+    /**
+     * @return The primary key, or <tt>null</tt> if none was set.
+     */
+    public AsymmetricCrypto getPrimary() {
+        return primary;
+    }
+
+    /**
+     * @return The key with the key id, or <tt>null</tt>.
+     */
+    public AsymmetricCrypto get( byte[] keyId ) {
+        return keys.get( ByteBuffer.wrap( keyId ) );
+    }
+
+    /**
+     * Remove the key with the key id. The primary key can not be removed.
+     *
+     * @return The removed key, or <tt>null</tt>.
+     */
+    public AsymmetricCrypto remove( byte[] keyId ) {
+        AsymmetricCrypto current = primary;
+        if ( current != null && ByteBuffer.wrap( keyId ).equals( ByteBuffer.wrap( current.getKeyId() ) ) ) {
+            throw new IllegalArgumentException( "The primary key can not be removed." );
+        }
+        return keys.remove( ByteBuffer.wrap( keyId ) );
+    }
+
+    public List<AsymmetricCrypto> getKeys() {
+        return new ArrayList<AsymmetricCrypto>( keys.values() );
+    }
+
+    public int size() {
+        return keys.size();
+    }
+}
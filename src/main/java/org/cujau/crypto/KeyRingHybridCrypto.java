@@ -0,0 +1,134 @@
+package org.cujau.crypto;
+
+import java.util.List;
+
+/**
+ * Hybrid encryption with the keys of a {@link KeyRing}. Bundles are encrypted with the primary key
+ * and carry its key id in the header, see {@link HybridCrypto#setKeyIdHeader(boolean)}. Decrypting
+ * looks the key up by the key id in the bundle, so every bundle costs a single asymmetric
+ * operation, whichever key of the ring it was encrypted with.
+ * <p>
+ * Bundles without a key id, such as {@link HybridCrypto#BUNDLE_V1} bundles created before the key
+ * id header was turned on, are tried with every key of the ring in turn. This class is thread
+ * safe.
+ */
+public class KeyRingHybridCrypto {
+
+    private final KeyRing ring;
+    private final SymmetricCrypto symmetric;
+    private volatile boolean authenticated;
+    private volatile SessionKeyCache sessionKeyCache;
+
+    public KeyRingHybridCrypto( KeyRing ring )
+            throws CryptoException {
+        this( ring, new SymmetricCrypto() );
+    }
+
+    public KeyRingHybridCrypto( KeyRing ring, SymmetricCrypto sym ) {
+        this.ring = ring;
+        this.symmetric = sym;
+    }
+
+    public KeyRing getKeyRing() {
+        return ring;
+    }
+
+    public boolean isAuthenticated() {
+        return authenticated;
+    }
+
+    /**
+     * @see HybridCrypto#setAuthenticated(boolean)
+     */
+    public void setAuthenticated( boolean authenticated ) {
+        this.authenticated = authenticated;
+    }
+
+    public SessionKeyCache getSessionKeyCache() {
+        return sessionKeyCache;
+    }
+
+    /**
+     * @see HybridCrypto#setSessionKeyCache(SessionKeyCache)
+     */
+    public void setSessionKeyCache( SessionKeyCache cache ) {
+        sessionKeyCache = cache;
+    }
+
+    public byte[] encryptWithPublicKey( byte[] data )
+            throws CryptoException {
+        return getHybridCrypto( getPrimary() ).encryptWithPublicKey( data );
+    }
+
+    public byte[] encryptWithPrivateKey( byte[] data )
+            throws CryptoException {
+        return getHybridCrypto( getPrimary() ).encryptWithPrivateKey( data );
+    }
+
+    public byte[] decryptWithPrivateKey( byte[] encBundle )
+            throws CryptoException {
+        return decrypt( encBundle, true );
+    }
+
+    public byte[] decryptWithPublicKey( byte[] encBundle )
+            throws CryptoException {
+        return decrypt( encBundle, false );
+    }
+
+    private byte[] decrypt( byte[] encBundle, boolean withPrivateKey )
+            throws CryptoException {
+        List<byte[]> keyIds = HybridCrypto.getKeyIds( encBundle, 0, encBundle.length );
+        for ( byte[] keyId : keyIds ) {
+            AsymmetricCrypto cry = ring.get( keyId );
+            if ( cry != null ) {
+                return decrypt( getHybridCrypto( cry ), encBundle, withPrivateKey );
+            }
+        }
+        if ( !keyIds.isEmpty() ) {
+            throw new CryptoException( "The bundle is not encrypted for any key of the ring." );
+        }
+
+        // An older bundle without a key id.
+        CryptoException last = null;
+        for ( AsymmetricCrypto cry : ring.getKeys() ) {
+            try {
+                return decrypt( getHybridCrypto( cry ), encBundle, withPrivateKey );
+            } catch ( CryptoException e ) {
+                last = e;
+            }
+        }
+        if ( last == null ) {
+            throw new CryptoException( "The key ring is empty." );
+        }
+        throw last;
+    }
+
+    private static byte[] decrypt( HybridCrypto hybrid, byte[] encBundle, boolean withPrivateKey )
+            throws CryptoException {
+        if ( withPrivateKey ) {
+            return hybrid.decryptWithPrivateKey( encBundle );
+        }
+        return hybrid.decryptWithPublicKey( encBundle );
+    }
+
+    private AsymmetricCrypto getPrimary()
+            throws CryptoException {
+        AsymmetricCrypto cry = ring.getPrimary();
+        if ( cry == null ) {
+            throw new CryptoException( "The key ring has no primary key." );
+        }
+        return cry;
+    }
+
+    /**
+     * A hybrid crypto for one key. Creating one only copies references, the ciphers are pooled by
+     * the keys and the symmetric crypto.
+     */
+    private HybridCrypto getHybridCrypto( AsymmetricCrypto cry ) {
+        HybridCrypto hybrid = new HybridCrypto( cry, symmetric );
+        hybrid.setKeyIdHeader( true );
+        hybrid.setAuthenticated( authenticated );
+        hybrid.setSessionKeyCache( sessionKeyCache );
+        return hybrid;
+    }
+}
@@ -0,0 +1,285 @@
+package org.cujau.crypto;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.UnrecoverableKeyException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An index of the keys in a keystore file. The file is parsed once and every alias is resolved to
+ * its public key and, for key entries, its private key, so lookups are plain map reads instead of
+ * keystore parsing and password based key decryption.
+ * <p>
+ * After {@link #startWatching()} the file is watched for changes, and a new snapshot of the keys
+ * replaces the old one in a single step when it changes. Lookups see either the old or the new
+ * keys, never a mix. A file that fails to load, e.g. one caught half written, leaves the previous
+ * snapshot in place. This class is thread safe.
+ */
+public class KeyStoreIndex implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger( KeyStoreIndex.class );
+
+    public static final String DEFAULT_KEYSTORE_TYPE = "jks";
+
+    private final Path file;
+    private final String type;
+    private final String storePassword;
+    private final String keyPassword;
+    private final AtomicLong reloads = new AtomicLong();
+
+    private volatile Snapshot snapshot;
+    private WatchService watcher;
+    private Thread watchThread;
+
+    /**
+     * Load a JKS keystore.
+     *
+     * @param keyPassword
+     *            The password for the private keys, or <tt>null</tt> to only index the public keys.
+     * @throws CryptoException
+     *             If the keystore can not be loaded.
+     */
+    public KeyStoreIndex( Path file, String storePassword, String keyPassword )
+            throws CryptoException {
+        this( file, DEFAULT_KEYSTORE_TYPE, storePassword, keyPassword );
+    }
+
+    public KeyStoreIndex( Path file, String type, String storePassword, String keyPassword )
+            throws CryptoException {
+        this.file = file.toAbsolutePath();
+        this.type = type;
+        this.storePassword = storePassword;
+        this.keyPassword = keyPassword;
+        this.snapshot = load();
+    }
+
+    /**
+     * @return The public key for the alias, or <tt>null</tt>.
+     */
+    public PublicKey getPublicKey( String alias ) {
+        return snapshot.publicKeys.get( alias );
+    }
+
+    /**
+     * @return The private key for the alias, or <tt>null</tt>.
+     */
+    public PrivateKey getPrivateKey( String alias ) {
+        return snapshot.privateKeys.get( alias );
+    }
+
+    /**
+     * Get the {@link AsymmetricCrypto} with the keys of the alias. The instance is built once per
+     * snapshot and shared by all callers, so its cipher pools stay warm. Do not change its keys.
+     *
+     * @throws CryptoException
+     *             If there is no key for the alias.
+     */
+    public AsymmetricCrypto getAsymmetricCrypto( String alias )
+            throws CryptoException {
+        AsymmetricCrypto cry = snapshot.cryptos.get( alias );
+        if ( cry == null ) {
+            throw new CryptoException( "No key for alias " + alias );
+        }
+        return cry;
+    }
+
+    public Set<String> getAliases() {
+        return snapshot.publicKeys.keySet();
+    }
+
+    /**
+     * @return The number of times a changed file was loaded, not counting the initial load.
+     */
+    public long getReloads() {
+        return reloads.get();
+    }
+
+    /**
+     * Load the file again and replace the keys. Reloads, including those of the watching thread,
+     * run one at a time, so the keys of the latest load are the ones that stay.
+     *
+     * @throws CryptoException
+     *             If the keystore can not be loaded, in which case the previous keys are kept.
+     */
+    public synchronized void reload()
+            throws CryptoException {
+        snapshot = load();
+        reloads.incrementAndGet();
+    }
+
+    /**
+     * Start a daemon thread that reloads the keys whenever the file is modified or replaced.
+     */
+    public synchronized void startWatching()
+            throws IOException {
+        if ( watcher != null ) {
+            return;
+        }
+        watcher = file.getFileSystem().newWatchService();
+        file.getParent().register( watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                                   StandardWatchEventKinds.ENTRY_MODIFY );
+        final WatchService ws = watcher;
+        watchThread = new Thread( "KeyStoreIndex-" + file.getFileName() ) {
+            @Override
+            public void run() {
+                watch( ws );
+            }
+        };
+        watchThread.setDaemon( true );
+        watchThread.start();
+    }
+
+    /**
+     * Stop watching the file. The keys stay available.
+     */
+    @Override
+    public synchronized void close()
+            throws IOException {
+        if ( watcher != null ) {
+            watcher.close();
+            watcher = null;
+            watchThread = null;
+        }
+    }
+
+    private void watch( WatchService ws ) {
+        try {
+            while ( true ) {
+                WatchKey key = ws.take();
+                boolean changed = false;
+                for ( WatchEvent<?> event : key.pollEvents() ) {
+                    if ( event.kind() == StandardWatchEventKinds.OVERFLOW
+                         || file.getFileName().equals( event.context() ) ) {
+                        changed = true;
+                    }
+                }
+                key.reset();
+                if ( changed ) {
+                    try {
+                        reload();
+                    } catch ( CryptoException e ) {
+                        LOG.warn( "Problem reloading keystore " + file + ", keeping the previous keys.", e );
+                    } catch ( RuntimeException e ) {
+                        // Keep watching, a later change may fix the file.
+                        LOG.warn( "Problem reloading keystore " + file + ", keeping the previous keys.", e );
+                    }
+                }
+            }
+        } catch ( ClosedWatchServiceException e ) {
+            // Closed, stop watching.
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Snapshot load()
+            throws CryptoException {
+        try {
+            KeyStore keystore = KeyStore.getInstance( type );
+            InputStream in = Files.newInputStream( file );
+            try {
+                keystore.load( in, storePassword.toCharArray() );
+            } finally {
+                in.close();
+            }
+            Map<String, PublicKey> publicKeys = new HashMap<String, PublicKey>();
+            Map<String, PrivateKey> privateKeys = new HashMap<String, PrivateKey>();
+            Enumeration<String> aliases = keystore.aliases();
+            while ( aliases.hasMoreElements() ) {
+                String alias = aliases.nextElement();
+                Certificate cert = keystore.getCertificate( alias );
+                if ( cert != null ) {
+                    publicKeys.put( alias, cert.getPublicKey() );
+                }
+                // Secret key entries are skipped.
+                if ( keyPassword != null && keystore.entryInstanceOf( alias, KeyStore.PrivateKeyEntry.class ) ) {
+                    PrivateKey key = loadPrivateKey( keystore, alias );
+                    if ( key != null ) {
+                        privateKeys.put( alias, key );
+                    }
+                }
+            }
+            return new Snapshot( publicKeys, privateKeys );
+        } catch ( KeyStoreException e ) {
+            throw new CryptoException( e );
+        } catch ( NoSuchAlgorithmException e ) {
+            throw new CryptoException( e );
+        } catch ( CertificateException e ) {
+            throw new CryptoException( e );
+        } catch ( IOException e ) {
+            throw new CryptoException( e );
+        }
+    }
+
+    /**
+     * @return The private key of the alias, or <tt>null</tt> if it can not be recovered with the
+     *         key password, which leaves the other aliases usable.
+     */
+    private PrivateKey loadPrivateKey( KeyStore keystore, String alias )
+            throws KeyStoreException {
+        try {
+            return (PrivateKey) keystore.getKey( alias, keyPassword.toCharArray() );
+        } catch ( UnrecoverableKeyException e ) {
+            LOG.warn( "Skipping the private key of alias " + alias + " in keystore " + file + ".", e );
+        } catch ( NoSuchAlgorithmException e ) {
+            LOG.warn( "Skipping the private key of alias " + alias + " in keystore " + file + ".", e );
+        }
+        return null;
+    }
+
+    private static class Snapshot {
+
+        private final Map<String, PublicKey> publicKeys;
+        private final Map<String, PrivateKey> privateKeys;
+        private final Map<String, AsymmetricCrypto> cryptos;
+
+        Snapshot( Map<String, PublicKey> publicKeys, Map<String, PrivateKey> privateKeys ) {
+            this.publicKeys = Collections.unmodifiableMap( publicKeys );
+            this.privateKeys = Collections.unmodifiableMap( privateKeys );
+            Map<String, AsymmetricCrypto> map = new HashMap<String, AsymmetricCrypto>();
+            for ( Map.Entry<String, PublicKey> entry : publicKeys.entrySet() ) {
+                map.put( entry.getKey(), newCrypto( entry.getValue(), privateKeys.get( entry.getKey() ) ) );
+            }
+            for ( Map.Entry<String, PrivateKey> entry : privateKeys.entrySet() ) {
+                if ( !map.containsKey( entry.getKey() ) ) {
+                    map.put( entry.getKey(), newCrypto( null, entry.getValue() ) );
+                }
+            }
+            this.cryptos = Collections.unmodifiableMap( map );
+        }
+
+        private static AsymmetricCrypto newCrypto( PublicKey pub, PrivateKey priv ) {
+            AsymmetricCrypto cry = new AsymmetricCrypto();
+            if ( pub != null ) {
+                cry.setPublicKey( pub );
+            }
+            if ( priv != null ) {
+                cry.setPrivateKey( priv );
+            }
+            return cry;
+        }
+    }
+}
@@ -1,10 +1,30 @@
 package org.cujau.crypto;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
 
 public class MD5Helper {
 
+    public static final String DIGEST_ALGORITHM_NAME = "MD5";
+    public static final int MD5_BYTES = 16;
+
+    static final int STREAM_BUFFER_BYTES = 8192;
+    static final int MAP_WINDOW_BYTES = 64 * 1024 * 1024;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final ThreadLocal<MessageDigest> THREAD_DIGEST = new ThreadLocal<MessageDigest>();
+
     /**
      * Convert the array of String to bytes to use for the salt.
      * 
@@ -34,30 +54,181 @@ public class MD5Helper {
 
     public static byte[] toMD5Bytes( byte[] valBytes )
             throws NoSuchAlgorithmException {
-        MessageDigest algorithm = MessageDigest.getInstance( "MD5" );
-        algorithm.reset();
+        MessageDigest algorithm = getThreadDigest();
         algorithm.update( valBytes );
         return algorithm.digest();
     }
 
     public static byte[] toMD5Bytes( byte[] valBytes, byte[] salt )
             throws NoSuchAlgorithmException {
-        MessageDigest algorithm = MessageDigest.getInstance( "MD5" );
-        algorithm.reset();
+        MessageDigest algorithm = getThreadDigest();
         algorithm.update( salt );
         algorithm.update( valBytes );
         return algorithm.digest();
     }
 
-    private static String md5BytesAsString( byte[] md ) {
-        StringBuilder hexString = new StringBuilder();
-        for ( int i = 0; i < md.length; i++ ) {
-            String hex = Integer.toHexString( 0xFF & md[i] );
-            if ( hex.length() == 1 ) {
-                hexString.append( '0' );
+    /**
+     * Get the digest of everything left in the stream. The stream is not closed.
+     */
+    public static byte[] toMD5Bytes( InputStream in )
+            throws NoSuchAlgorithmException, IOException {
+        MessageDigest algorithm = getThreadDigest();
+        byte[] buf = new byte[STREAM_BUFFER_BYTES];
+        int len;
+        while ( ( len = in.read( buf ) ) != -1 ) {
+            algorithm.update( buf, 0, len );
+        }
+        return algorithm.digest();
+    }
+
+    /**
+     * Get the digest of everything left in the channel. The channel is not closed.
+     */
+    public static byte[] toMD5Bytes( ReadableByteChannel in )
+            throws NoSuchAlgorithmException, IOException {
+        MessageDigest algorithm = getThreadDigest();
+        ByteBuffer buf = ByteBuffer.allocate( STREAM_BUFFER_BYTES );
+        while ( in.read( buf ) != -1 ) {
+            buf.flip();
+            algorithm.update( buf );
+            buf.clear();
+        }
+        return algorithm.digest();
+    }
+
+    /**
+     * Get the digest of a file. The file is mapped into memory a window of
+     * {@link #MAP_WINDOW_BYTES} at a time and the digest reads the mapped pages directly, so no
+     * file data is copied onto the heap, whatever the size of the file.
+     */
+    public static byte[] toMD5Bytes( Path path )
+            throws NoSuchAlgorithmException, IOException {
+        return toMD5Bytes( path, MAP_WINDOW_BYTES );
+    }
+
+    static byte[] toMD5Bytes( Path path, int windowBytes )
+            throws NoSuchAlgorithmException, IOException {
+        MessageDigest algorithm = getThreadDigest();
+        FileChannel ch = FileChannel.open( path, StandardOpenOption.READ );
+        try {
+            long size = ch.size();
+            for ( long pos = 0; pos < size; pos += windowBytes ) {
+                MappedByteBuffer window = ch.map( FileChannel.MapMode.READ_ONLY, pos,
+                                                  Math.min( windowBytes, size - pos ) );
+                algorithm.update( window );
             }
-            hexString.append( hex );
+        } finally {
+            ch.close();
+        }
+        return algorithm.digest();
+    }
+
+    /**
+     * Write the {@link #MD5_BYTES} byte digest of <tt>valBytes</tt> into <tt>out</tt>, starting at
+     * <tt>outOffset</tt>, without allocating.
+     * 
+     * @return The number of bytes written.
+     * @throws IllegalArgumentException
+     *             If <tt>out</tt> has no room for the digest.
+     */
+    public static int toMD5Bytes( byte[] valBytes, byte[] out, int outOffset )
+            throws NoSuchAlgorithmException {
+        if ( outOffset < 0 || out.length - outOffset < MD5_BYTES ) {
+            throw new IllegalArgumentException( "The output buffer is too small." );
+        }
+        MessageDigest algorithm = getThreadDigest();
+        algorithm.update( valBytes );
+        try {
+            return algorithm.digest( out, outOffset, MD5_BYTES );
+        } catch ( DigestException e ) {
+            throw new IllegalArgumentException( e );
+        }
+    }
+
+    /**
+     * Append the hex digest of <tt>valBytes</tt> to <tt>out</tt>, e.g. a reused
+     * <tt>StringBuilder</tt>.
+     */
+    public static void appendMD5String( byte[] valBytes, Appendable out )
+            throws NoSuchAlgorithmException, IOException {
+        appendHex( toMD5Bytes( valBytes ), out );
+    }
+
+    /**
+     * Get the digests of many values, in the same order.
+     */
+    public static List<byte[]> toMD5Bytes( List<byte[]> values )
+            throws NoSuchAlgorithmException {
+        MessageDigest algorithm = getThreadDigest();
+        List<byte[]> ret = new ArrayList<byte[]>( values.size() );
+        for ( byte[] value : values ) {
+            algorithm.update( value );
+            ret.add( algorithm.digest() );
+        }
+        return ret;
+    }
+
+    /**
+     * Get the hex digests of many values, in the same order.
+     */
+    public static List<String> toMD5Strings( List<byte[]> values )
+            throws NoSuchAlgorithmException {
+        MessageDigest algorithm = getThreadDigest();
+        char[] hex = new char[2 * MD5_BYTES];
+        List<String> ret = new ArrayList<String>( values.size() );
+        for ( byte[] value : values ) {
+            algorithm.update( value );
+            toHex( algorithm.digest(), hex, 0 );
+            ret.add( new String( hex ) );
+        }
+        return ret;
+    }
+
+    /**
+     * Write the lower case hex form of <tt>bytes</tt> into <tt>out</tt>, starting at
+     * <tt>outOffset</tt>.
+     * 
+     * @return The number of characters written, two per byte.
+     */
+    public static int toHex( byte[] bytes, char[] out, int outOffset ) {
+        int j = outOffset;
+        for ( int i = 0; i < bytes.length; i++ ) {
+            out[j++] = HEX_DIGITS[( bytes[i] >> 4 ) & 0x0F];
+            out[j++] = HEX_DIGITS[bytes[i] & 0x0F];
         }
-        return hexString.toString();
+        return j - outOffset;
+    }
+
+    /**
+     * Append the lower case hex form of <tt>bytes</tt> to <tt>out</tt>.
+     */
+    public static void appendHex( byte[] bytes, Appendable out )
+            throws IOException {
+        for ( int i = 0; i < bytes.length; i++ ) {
+            out.append( HEX_DIGITS[( bytes[i] >> 4 ) & 0x0F] );
+            out.append( HEX_DIGITS[bytes[i] & 0x0F] );
+        }
+    }
+
+    /**
+     * @return This thread's digest, reset and ready for use.
+     */
+    private static MessageDigest getThreadDigest()
+            throws NoSuchAlgorithmException {
+        MessageDigest algorithm = THREAD_DIGEST.get();
+        if ( algorithm == null ) {
+            algorithm = MessageDigest.getInstance( DIGEST_ALGORITHM_NAME );
+            THREAD_DIGEST.set( algorithm );
+        } else {
+            // In case a previous caller failed half way.
+            algorithm.reset();
+        }
+        return algorithm;
+    }
+
+    private static String md5BytesAsString( byte[] md ) {
+        char[] hex = new char[2 * md.length];
+        toHex( md, hex, 0 );
+        return new String( hex );
     }
 }
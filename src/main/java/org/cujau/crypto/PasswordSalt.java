@@ -0,0 +1,100 @@
+package org.cujau.crypto;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A salt for deriving a key from a password, together with the PBKDF2 PRF and number of
+ * iterations the key is derived with. Keeping these next to the salt lets every machine derive the
+ * same key, whatever PRF and iteration count it would pick for itself.
+ * <p>
+ * The serialized form is <tt>iterations (4 bytes, big-endian) | PRF length (1 byte) | PRF name
+ * (UTF-8) | salt</tt>.
+ *
+ * @see SymmetricCrypto#getRandomPasswordSalt()
+ * @see SymmetricCrypto#getKeyFromPassword(String, PasswordSalt)
+ */
+public class PasswordSalt {
+
+    private static final int MAX_PRF_BYTES = 0xFF;
+
+    private final byte[] salt;
+    private final String prf;
+    private final int iterations;
+
+    /**
+     * @param prf
+     *            The pseudo random function, e.g. <tt>HmacSHA256</tt>.
+     */
+    public PasswordSalt( byte[] salt, String prf, int iterations ) {
+        if ( iterations <= 0 ) {
+            throw new IllegalArgumentException( "The number of iterations must be positive: " + iterations );
+        }
+        int prfBytes = prf.getBytes( StandardCharsets.UTF_8 ).length;
+        if ( prfBytes == 0 || prfBytes > MAX_PRF_BYTES ) {
+            throw new IllegalArgumentException( "Invalid PRF name: " + prf );
+        }
+        this.salt = salt.clone();
+        this.prf = prf;
+        this.iterations = iterations;
+    }
+
+    public byte[] getSalt() {
+        return salt.clone();
+    }
+
+    public String getPrf() {
+        return prf;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public byte[] toBytes() {
+        byte[] name = prf.getBytes( StandardCharsets.UTF_8 );
+        return ByteBuffer.allocate( 4 + 1 + name.length + salt.length ).putInt( iterations ).put( (byte) name.length )
+                         .put( name ).put( salt ).array();
+    }
+
+    /**
+     * Read a salt written by {@link #toBytes()}.
+     *
+     * @throws CryptoException
+     *             If the bytes do not hold a salt.
+     */
+    public static PasswordSalt fromBytes( byte[] bytes )
+            throws CryptoException {
+        if ( bytes.length < 4 + 1 ) {
+            throw new CryptoException( "Salt is too short." );
+        }
+        ByteBuffer buf = ByteBuffer.wrap( bytes );
+        int iterations = buf.getInt();
+        if ( iterations <= 0 ) {
+            throw new CryptoException( "Invalid number of iterations: " + iterations );
+        }
+        int nameLength = buf.get() & 0xFF;
+        if ( nameLength == 0 || buf.remaining() <= nameLength ) {
+            throw new CryptoException( "Salt is too short." );
+        }
+        byte[] name = new byte[nameLength];
+        buf.get( name );
+        return new PasswordSalt( Arrays.copyOfRange( bytes, buf.position(), bytes.length ),
+                                 new String( name, StandardCharsets.UTF_8 ), iterations );
+    }
+
+    @Override
+    public boolean equals( Object obj ) {
+        if ( !( obj instanceof PasswordSalt ) ) {
+            return false;
+        }
+        PasswordSalt other = (PasswordSalt) obj;
+        return iterations == other.iterations && prf.equals( other.prf ) && Arrays.equals( salt, other.salt );
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * ( 31 * iterations + prf.hashCode() ) + Arrays.hashCode( salt );
+    }
+}
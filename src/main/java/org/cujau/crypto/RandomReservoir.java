@@ -0,0 +1,193 @@
+package org.cujau.crypto;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A reservoir of random bytes that is filled in the background, so that drawing an IV, a salt or a
+ * key does not pay for the random generator on the calling thread.
+ * <p>
+ * The reservoir is a lock-free ring of {@link #SLOT_BYTES} byte slots. The slots are filled from
+ * large blocks drawn from a {@link SecureRandomPool} by a single refill task, which is started on
+ * the executor whenever the number of filled slots drops below the refill threshold. Every slot is
+ * handed out once. When the reservoir has run dry, or more than {@link #SLOT_BYTES} bytes are
+ * asked for, the bytes are drawn directly from the pool instead, and the former is counted as a
+ * stall.
+ * <p>
+ * The random bytes of the filled slots are kept in memory until they are used. This class is
+ * thread safe.
+ *
+ * @see SymmetricCrypto#setRandomReservoir(RandomReservoir)
+ */
+public class RandomReservoir {
+
+    /**
+     * The size of a slot: an AES block, which is the size of an IV, a salt and an AES-128 key.
+     */
+    public static final int SLOT_BYTES = 16;
+    // The number of slots filled with a single call to the random generator.
+    private static final int SLOTS_PER_BLOCK = 256;
+
+    private final SecureRandomPool source;
+    private final int refillThreshold;
+    private final Executor executor;
+    private final AtomicReferenceArray<byte[]> slots;
+    // The next slot to take, and the next slot to fill. Only the refill task moves the tail.
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicBoolean refilling = new AtomicBoolean();
+
+    private final AtomicLong served = new AtomicLong();
+    private final AtomicLong stalls = new AtomicLong();
+    private final AtomicLong refills = new AtomicLong();
+
+    /**
+     * Create a reservoir that is refilled on the common fork-join pool.
+     */
+    public RandomReservoir( SecureRandomPool source, int capacity, int refillThreshold ) {
+        this( source, capacity, refillThreshold, ForkJoinPool.commonPool() );
+    }
+
+    /**
+     * Create a reservoir and start filling it.
+     *
+     * @param source
+     *            The generator the reservoir is filled from, and which serves the requests the
+     *            reservoir cannot serve.
+     * @param capacity
+     *            The number of slots.
+     * @param refillThreshold
+     *            The number of filled slots below which a refill is started.
+     * @param executor
+     *            Runs the refill task.
+     */
+    public RandomReservoir( SecureRandomPool source, int capacity, int refillThreshold, Executor executor ) {
+        if ( capacity <= 0 ) {
+            throw new IllegalArgumentException( "The capacity must be positive: " + capacity );
+        }
+        if ( refillThreshold <= 0 || refillThreshold > capacity ) {
+            throw new IllegalArgumentException( "Invalid refill threshold: " + refillThreshold );
+        }
+        this.source = source;
+        this.refillThreshold = refillThreshold;
+        this.executor = executor;
+        this.slots = new AtomicReferenceArray<byte[]>( capacity );
+        startRefill();
+    }
+
+    /**
+     * Fill the array with random bytes, from the reservoir if possible.
+     */
+    public void nextBytes( byte[] bytes ) {
+        if ( bytes.length > SLOT_BYTES ) {
+            source.nextBytes( bytes );
+            return;
+        }
+        byte[] slot = take();
+        if ( slot == null ) {
+            stalls.incrementAndGet();
+            startRefill();
+            source.nextBytes( bytes );
+            return;
+        }
+        System.arraycopy( slot, 0, bytes, 0, bytes.length );
+        served.incrementAndGet();
+        if ( getDepth() < refillThreshold ) {
+            startRefill();
+        }
+    }
+
+    public int getCapacity() {
+        return slots.length();
+    }
+
+    /**
+     * @return The number of filled slots.
+     */
+    public int getDepth() {
+        return (int) ( tail.get() - head.get() );
+    }
+
+    /**
+     * @return The number of requests served from the reservoir.
+     */
+    public long getServed() {
+        return served.get();
+    }
+
+    /**
+     * @return The number of requests that found the reservoir empty and were served by the
+     *         generator directly.
+     */
+    public long getStalls() {
+        return stalls.get();
+    }
+
+    /**
+     * @return The number of times the refill task ran.
+     */
+    public long getRefills() {
+        return refills.get();
+    }
+
+    /**
+     * @return The bytes of a filled slot, or <tt>null</tt> if there is none.
+     */
+    private byte[] take() {
+        while ( true ) {
+            long h = head.get();
+            if ( h >= tail.get() ) {
+                return null;
+            }
+            if ( head.compareAndSet( h, h + 1 ) ) {
+                // The refill task publishes the slot before it moves the tail past it, and does not
+                // fill it again before it has been emptied here.
+                return slots.getAndSet( index( h ), null );
+            }
+        }
+    }
+
+    private void startRefill() {
+        if ( refilling.compareAndSet( false, true ) ) {
+            executor.execute( new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        refill();
+                    } finally {
+                        refilling.set( false );
+                    }
+                }
+            } );
+        }
+    }
+
+    private void refill() {
+        refills.incrementAndGet();
+        byte[] block = new byte[SLOTS_PER_BLOCK * SLOT_BYTES];
+        int used = SLOTS_PER_BLOCK;
+        while ( tail.get() - head.get() < slots.length() ) {
+            long t = tail.get();
+            // The slot may still be in the hands of the thread that took it.
+            if ( slots.get( index( t ) ) != null ) {
+                return;
+            }
+            if ( used == SLOTS_PER_BLOCK ) {
+                source.nextBytes( block );
+                used = 0;
+            }
+            byte[] slot = new byte[SLOT_BYTES];
+            System.arraycopy( block, used * SLOT_BYTES, slot, 0, SLOT_BYTES );
+            used++;
+            slots.set( index( t ), slot );
+            tail.set( t + 1 );
+        }
+    }
+
+    private int index( long position ) {
+        return (int) ( position % slots.length() );
+    }
+}
@@ -0,0 +1,104 @@
+package org.cujau.crypto;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A striped pool of {@link SecureRandom} instances of one algorithm.
+ * <p>
+ * Some algorithms, such as <tt>SHA1PRNG</tt>, lock the instance for every call, so a single
+ * instance shared by many threads becomes a point of contention. The pool maps every thread to one
+ * of its stripes by the thread id, so threads only contend when they share a stripe. The stripes
+ * are created and seeded when they are first used. This class is thread safe.
+ *
+ * @see SymmetricCrypto#SymmetricCrypto(SecureRandomPool)
+ */
+public class SecureRandomPool {
+
+    public static final String DEFAULT_ALGORITHM = "SHA1PRNG";
+
+    private final String algorithm;
+    private final AtomicReferenceArray<SecureRandom> stripes;
+
+    /**
+     * Create a pool of {@link #DEFAULT_ALGORITHM} instances, with two stripes per processor.
+     */
+    public SecureRandomPool()
+            throws CryptoException {
+        this( DEFAULT_ALGORITHM );
+    }
+
+    /**
+     * Create a pool with two stripes per processor.
+     *
+     * @param algorithm
+     *            The {@link SecureRandom} algorithm, e.g. <tt>SHA1PRNG</tt>, <tt>DRBG</tt> or
+     *            <tt>NativePRNGNonBlocking</tt>.
+     * @throws CryptoException
+     *             If the algorithm is not available.
+     */
+    public SecureRandomPool( String algorithm )
+            throws CryptoException {
+        this( algorithm, Runtime.getRuntime().availableProcessors() * 2 );
+    }
+
+    /**
+     * @param algorithm
+     *            The {@link SecureRandom} algorithm.
+     * @param stripeCount
+     *            The number of instances. 1 shares a single instance between all threads.
+     * @throws CryptoException
+     *             If the algorithm is not available.
+     */
+    public SecureRandomPool( String algorithm, int stripeCount )
+            throws CryptoException {
+        if ( stripeCount <= 0 ) {
+            throw new IllegalArgumentException( "The number of stripes must be positive: " + stripeCount );
+        }
+        this.algorithm = algorithm;
+        this.stripes = new AtomicReferenceArray<SecureRandom>( stripeCount );
+        try {
+            // Fail here, rather than on first use, if the algorithm is not available.
+            stripes.set( 0, SecureRandom.getInstance( algorithm ) );
+        } catch ( NoSuchAlgorithmException e ) {
+            throw new CryptoException( e );
+        }
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public int getStripeCount() {
+        return stripes.length();
+    }
+
+    /**
+     * Fill the array with random bytes from the stripe of the current thread.
+     */
+    public void nextBytes( byte[] bytes ) {
+        getStripe().nextBytes( bytes );
+    }
+
+    /**
+     * @return The instance of the current thread's stripe.
+     */
+    SecureRandom getStripe() {
+        int index = (int) ( Thread.currentThread().getId() % stripes.length() );
+        SecureRandom random = stripes.get( index );
+        if ( random != null ) {
+            return random;
+        }
+        try {
+            random = SecureRandom.getInstance( algorithm );
+        } catch ( NoSuchAlgorithmException e ) {
+            // Already checked by the constructor.
+            throw new IllegalStateException( e );
+        }
+        if ( !stripes.compareAndSet( index, null, random ) ) {
+            random = stripes.get( index );
+        }
+        return random;
+    }
+}
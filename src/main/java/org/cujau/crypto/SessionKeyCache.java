@@ -0,0 +1,114 @@
+package org.cujau.crypto;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * A cache of unwrapped session keys for {@link HybridCrypto}, so that bundles that share the same
+ * asymmetrically encrypted key only pay for the asymmetric decryption once.
+ * <p>
+ * The entries are looked up by a SHA-256 digest of the id of the key pair and the encrypted key,
+ * the encrypted key itself is not kept. A cache can be shared by several key pairs. The cache
+ * holds at most a fixed number of entries, evicting the least recently used one when full, and
+ * every entry expires after a fixed time. Key material that leaves the cache is overwritten with
+ * zeros. This class is thread safe.
+ *
+ * @see HybridCrypto#setSessionKeyCache(SessionKeyCache)
+ */
+public class SessionKeyCache {
+
+    static final String DIGEST_ALGORITHM_NAME = "SHA-256";
+
+    private final ExpiringLruCache<ByteBuffer, byte[]> cache;
+
+    /**
+     * @param maxEntries
+     *            The maximum number of keys held by the cache.
+     * @param ttlMillis
+     *            The time, in milliseconds, a key stays in the cache after it was added.
+     */
+    public SessionKeyCache( int maxEntries, long ttlMillis ) {
+        cache = new ExpiringLruCache<ByteBuffer, byte[]>( maxEntries, ttlMillis ) {
+            @Override
+            protected void removed( byte[] value ) {
+                Arrays.fill( value, (byte) 0 );
+            }
+
+            @Override
+            protected byte[] copy( byte[] value ) {
+                // Under the lock, as the cached array is zeroed when it is evicted.
+                return value.clone();
+            }
+        };
+    }
+
+    /**
+     * @return The number of lookups that found a key.
+     */
+    public long getHits() {
+        return cache.getHits();
+    }
+
+    /**
+     * @return The number of lookups that did not find a key, including expired ones.
+     */
+    public long getMisses() {
+        return cache.getMisses();
+    }
+
+    /**
+     * @return The number of keys removed to keep the cache within its maximum size.
+     */
+    public long getEvictions() {
+        return cache.getEvictions();
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    public void clear() {
+        cache.clear();
+    }
+
+    /**
+     * Get the lookup key for an encrypted key.
+     *
+     * @param keyId
+     *            The {@link AsymmetricCrypto#getKeyId() key id} of the key pair that decrypts the
+     *            key, so that a cache shared by several key pairs never hands one pair's key to
+     *            another.
+     * @param wrapped
+     *            The encrypted key.
+     * @param withPrivateKey
+     *            Whether the key is decrypted with the private or the public key.
+     */
+    static ByteBuffer digest( byte[] keyId, byte[] wrapped, boolean withPrivateKey )
+            throws CryptoException {
+        if ( keyId == null ) {
+            throw new CryptoException( "The key for this operation has not been set." );
+        }
+        try {
+            MessageDigest md = MessageDigest.getInstance( DIGEST_ALGORITHM_NAME );
+            md.update( keyId );
+            md.update( (byte) ( withPrivateKey ? 1 : 0 ) );
+            md.update( wrapped );
+            return ByteBuffer.wrap( md.digest() );
+        } catch ( NoSuchAlgorithmException e ) {
+            throw new CryptoException( e );
+        }
+    }
+
+    /**
+     * @return A copy of the cached key, or <tt>null</tt>.
+     */
+    byte[] get( ByteBuffer digest ) {
+        return cache.get( digest );
+    }
+
+    void put( ByteBuffer digest, byte[] unwrapped ) {
+        cache.put( digest, unwrapped.clone() );
+    }
+}
@@ -1,19 +1,29 @@
 package org.cujau.crypto;
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
 import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.KeyGenerator;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
 import javax.crypto.SecretKeyFactory;
-import javax.crypto.interfaces.PBEKey;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
@@ -28,6 +38,11 @@ import org.slf4j.LoggerFactory;
  * the text of a message to change the content in a particular way. This might be as simple as
  * shifting each letter by a number of places in the alphabet. As long as both sender and recipient
  * know the secret key, they can encrypt and decrypt all messages that use this key."
+ * <p>
+ * Every thread keeps its own CBC, GCM and CTR ciphers for reuse, shared by all instances. A kept
+ * cipher stays initialized with the last key the thread used until the thread ends, which in a long
+ * lived pool thread can be much longer than the key is needed. Call {@link #clearThreadCiphers()}
+ * on such a thread to drop them, e.g. from <tt>ThreadPoolExecutor.afterExecute</tt>.
  */
 public class SymmetricCrypto {
 
@@ -36,19 +51,61 @@ public class SymmetricCrypto {
     static final String ALGORITHM_NAME = "AES";
     static final String CIPHER_ALGORITHM_NAME = "AES/CBC/PKCS5Padding";
     static final int ALGORITHM_BITS = 128;
+    static final int ALGORITHM_BLOCK_BYTES = 16;
+    static final int STREAM_BUFFER_SIZE = 8192;
+    static final int FILE_BUFFER_SIZE = 64 * 1024;
+    static final int FILE_WINDOW_SIZE = 64 * 1024 * 1024;
+    static final String GCM_CIPHER_ALGORITHM_NAME = "AES/GCM/NoPadding";
+    static final int GCM_IV_BYTES = 12;
+    public static final int GCM_TAG_BITS = 128;
+    static final String CTR_CIPHER_ALGORITHM_NAME = "AES/CTR/NoPadding";
+    static final String PBKDF2_ALGORITHM_PREFIX = "PBKDF2With";
+    public static final String DEFAULT_PBKDF2_PRF = "HmacSHA1";
+    public static final int DEFAULT_PBKDF2_ITERATIONS = 1000;
+    public static final int PBKDF2_CALIBRATION_STEP = 1000;
+    private static final int PBKDF2_CALIBRATION_RUNS = 3;
 
-    private final KeyGenerator keyGen;
-    private final SecureRandom secureRandom;
+    private static final ThreadLocal<Cipher> THREAD_CIPHER = new ThreadLocal<Cipher>();
+    private static final ThreadLocal<Cipher> THREAD_GCM_CIPHER = new ThreadLocal<Cipher>();
+    private static final ThreadLocal<Cipher> THREAD_CTR_CIPHER = new ThreadLocal<Cipher>();
+    private static final ThreadLocal<SecretKeyFactory> THREAD_KEY_FACTORY = new ThreadLocal<SecretKeyFactory>();
+
+    private final SecureRandomPool secureRandom;
+    private RandomReservoir reservoir;
+    private String pbkdf2Prf = DEFAULT_PBKDF2_PRF;
+    private int pbkdf2Iterations = DEFAULT_PBKDF2_ITERATIONS;
+    private DerivedKeyCache derivedKeyCache;
 
     public SymmetricCrypto()
             throws CryptoException {
-        keyGen = loadKeyGenerator( ALGORITHM_NAME, ALGORITHM_BITS );
+        this( new SecureRandomPool() );
+    }
 
-        try {
-            secureRandom = SecureRandom.getInstance( "SHA1PRNG" );
-        } catch ( NoSuchAlgorithmException e ) {
-            throw new CryptoException( e );
-        }
+    /**
+     * @param secureRandom
+     *            The source of the random keys, IVs and salts.
+     */
+    public SymmetricCrypto( SecureRandomPool secureRandom ) {
+        this.secureRandom = secureRandom;
+    }
+
+    public SecureRandomPool getSecureRandomPool() {
+        return secureRandom;
+    }
+
+    public RandomReservoir getRandomReservoir() {
+        return reservoir;
+    }
+
+    /**
+     * Draw the random keys, IVs and salts from a reservoir that is filled in the background.
+     *
+     * @param reservoir
+     *            The reservoir, or <tt>null</tt> (the default) to draw from the
+     *            {@link #getSecureRandomPool() pool} directly.
+     */
+    public void setRandomReservoir( RandomReservoir reservoir ) {
+        this.reservoir = reservoir;
     }
 
     /**
@@ -56,8 +113,11 @@ public class SymmetricCrypto {
      * an AES key of 128bits (16bytes).
      */
     public SecretKey getRandomKey() {
-        SecretKey secretKey = keyGen.generateKey();
-        return secretKey;
+        // An AES key is nothing but random bytes, which is also all the AES KeyGenerator does. This
+        // avoids locking a shared KeyGenerator.
+        byte[] key = new byte[ALGORITHM_BITS / 8];
+        nextRandomBytes( key );
+        return getKeyFromBytes( key );
     }
 
     public SecretKey getKeyFromBytes( byte[] key ) {
@@ -74,7 +134,7 @@ public class SymmetricCrypto {
      */
     public IvParameterSpec getRandomIV() {
         byte[] iv = new byte[16];
-        secureRandom.nextBytes( iv );
+        nextRandomBytes( iv );
         return new IvParameterSpec( iv );
     }
 
@@ -82,6 +142,27 @@ public class SymmetricCrypto {
         return new IvParameterSpec( iv );
     }
 
+    /**
+     * Create AES-GCM parameters with a random 12 byte IV. An IV must never be used twice with the
+     * same key.
+     * 
+     * @param tagBits
+     *            The length of the authentication tag in bits: 128, 120, 112, 104 or 96.
+     *            {@link #GCM_TAG_BITS} is the usual choice.
+     */
+    public GCMParameterSpec getRandomGcmParameters( int tagBits ) {
+        byte[] iv = new byte[GCM_IV_BYTES];
+        nextRandomBytes( iv );
+        return getGcmParametersFromBytes( tagBits, iv );
+    }
+
+    public GCMParameterSpec getGcmParametersFromBytes( int tagBits, byte[] iv ) {
+        if ( tagBits < 96 || tagBits > 128 || tagBits % 8 != 0 ) {
+            throw new IllegalArgumentException( "Invalid tag length: " + tagBits );
+        }
+        return new GCMParameterSpec( tagBits, iv );
+    }
+
     /**
      * Create a byte[16] array filled with random bytes.
      * 
@@ -89,28 +170,223 @@ public class SymmetricCrypto {
      */
     public byte[] getRandomSalt() {
         byte[] salt = new byte[16];
-        secureRandom.nextBytes( salt );
+        nextRandomBytes( salt );
         return salt;
     }
 
+    private void nextRandomBytes( byte[] bytes ) {
+        RandomReservoir r = reservoir;
+        if ( r != null ) {
+            r.nextBytes( bytes );
+        } else {
+            secureRandom.nextBytes( bytes );
+        }
+    }
+
     public SecretKey getKeyFromPasswordAndSalt( String pwd, byte[] salt )
             throws CryptoException {
+        return getKeyFromPasswordAndSalt( pwd, salt, pbkdf2Iterations );
+    }
+
+    /**
+     * Derive an AES key from the password and salt with PBKDF2, using the given number of
+     * iterations and the {@link #setPasswordKeyDerivation(String, int) configured} PRF. The key is
+     * taken from the {@link #setDerivedKeyCache(DerivedKeyCache) derived key cache}, if there is
+     * one.
+     * 
+     * @param pwd
+     * @param salt
+     * @param iterations
+     * @return The key.
+     * @throws CryptoException
+     */
+    public SecretKey getKeyFromPasswordAndSalt( String pwd, byte[] salt, int iterations )
+            throws CryptoException {
+        return getKeyFromPasswordAndSalt( pwd, salt, pbkdf2Prf, iterations );
+    }
+
+    private SecretKey getKeyFromPasswordAndSalt( String pwd, byte[] salt, String prf, int iterations )
+            throws CryptoException {
+        DerivedKeyCache cache = derivedKeyCache;
+        char[] password = pwd.toCharArray();
         try {
-            PBEKeySpec password = new PBEKeySpec( pwd.toCharArray(), salt, 1000, 128 );
-            SecretKeyFactory factory;
-            factory = SecretKeyFactory.getInstance( "PBKDF2WithHmacSHA1" );
-            PBEKey key = (PBEKey) factory.generateSecret( password );
-            SecretKey encKey = new SecretKeySpec( key.getEncoded(), "AES" );
-            return encKey;
-        } catch ( NoSuchAlgorithmException e ) {
-            throw new CryptoException( e );
+            ByteBuffer digest = null;
+            if ( cache != null ) {
+                digest = cache.digest( prf, iterations, password, salt );
+                byte[] cached = cache.get( digest );
+                if ( cached != null ) {
+                    return getKeyFromBytes( cached );
+                }
+            }
+            byte[] key = deriveKey( prf, password, salt, iterations );
+            if ( cache != null ) {
+                cache.put( digest, key );
+            }
+            return getKeyFromBytes( key );
+        } finally {
+            Arrays.fill( password, '\0' );
+        }
+    }
+
+    /**
+     * Derive an AES key from the password with the salt, PRF and iteration count stored in
+     * <tt>salt</tt>, whatever PRF and iteration count this instance is configured with.
+     *
+     * @throws CryptoException
+     *             If the PRF of the salt is not available.
+     */
+    public SecretKey getKeyFromPassword( String pwd, PasswordSalt salt )
+            throws CryptoException {
+        return getKeyFromPasswordAndSalt( pwd, salt.getSalt(), salt.getPrf(), salt.getIterations() );
+    }
+
+    /**
+     * Create a random salt, together with the {@link #setPasswordKeyDerivation(String, int)
+     * configured} PRF and iteration count.
+     */
+    public PasswordSalt getRandomPasswordSalt() {
+        return new PasswordSalt( getRandomSalt(), pbkdf2Prf, pbkdf2Iterations );
+    }
+
+    /**
+     * Find the highest PBKDF2 iteration count, with the configured PRF, that derives a key within
+     * the target time on this machine. Meant to be run once at startup, e.g.
+     * 
+     * <pre>
+     * cry.setPasswordKeyDerivation( prf, cry.calibratePbkdf2Iterations( prf, 50 ) );
+     * </pre>
+     * 
+     * The result is a multiple of {@link #PBKDF2_CALIBRATION_STEP}, and never less than
+     * {@link #DEFAULT_PBKDF2_ITERATIONS}. Store it with {@link PasswordSalt} next to every salt, as
+     * a slower machine would pick a lower count.
+     * 
+     * @param prf
+     *            The pseudo random function, e.g. <tt>HmacSHA256</tt>.
+     * @param targetMillis
+     *            The time, in milliseconds, deriving a key may take.
+     * @return The iteration count.
+     * @throws CryptoException
+     *             If the PRF is not available.
+     */
+    public int calibratePbkdf2Iterations( String prf, long targetMillis )
+            throws CryptoException {
+        if ( targetMillis <= 0 ) {
+            throw new IllegalArgumentException( "The target time must be positive: " + targetMillis );
+        }
+        long targetNanos = targetMillis * 1000000L;
+        char[] password = "calibration".toCharArray();
+        byte[] salt = getRandomSalt();
+
+        // Estimate from a short run, then back off while a run at the estimate is too slow.
+        long nanos = timeDerivation( prf, password, salt, PBKDF2_CALIBRATION_STEP );
+        long estimate = PBKDF2_CALIBRATION_STEP * targetNanos / Math.max( 1, nanos );
+        int iterations = roundIterations( Math.min( estimate, Integer.MAX_VALUE ) );
+        while ( iterations > DEFAULT_PBKDF2_ITERATIONS
+                && timeDerivation( prf, password, salt, iterations ) > targetNanos ) {
+            iterations = roundIterations( iterations * 9L / 10 );
+        }
+        return iterations;
+    }
+
+    /**
+     * @return The shortest of a few derivations, in nanoseconds, which is the least disturbed by
+     *         other work on the machine.
+     */
+    private static long timeDerivation( String prf, char[] password, byte[] salt, int iterations )
+            throws CryptoException {
+        long best = Long.MAX_VALUE;
+        for ( int i = 0; i < PBKDF2_CALIBRATION_RUNS; i++ ) {
+            long start = System.nanoTime();
+            deriveKey( prf, password, salt, iterations );
+            best = Math.min( best, System.nanoTime() - start );
+        }
+        return best;
+    }
+
+    private static int roundIterations( long iterations ) {
+        long rounded = iterations / PBKDF2_CALIBRATION_STEP * PBKDF2_CALIBRATION_STEP;
+        return (int) Math.max( DEFAULT_PBKDF2_ITERATIONS, rounded );
+    }
+
+    public String getPbkdf2Prf() {
+        return pbkdf2Prf;
+    }
+
+    public int getPbkdf2Iterations() {
+        return pbkdf2Iterations;
+    }
+
+    /**
+     * Set the parameters of PBKDF2 used by {@link #getKeyFromPasswordAndSalt(String, byte[])}.
+     * Defaults to {@link #DEFAULT_PBKDF2_PRF} and {@link #DEFAULT_PBKDF2_ITERATIONS}, which are
+     * needed to derive the keys of data encrypted before this was configurable.
+     * 
+     * @param prf
+     *            The pseudo random function, e.g. <tt>HmacSHA256</tt>.
+     * @param iterations
+     * @throws CryptoException
+     *             If the PRF is not available.
+     */
+    public void setPasswordKeyDerivation( String prf, int iterations )
+            throws CryptoException {
+        if ( iterations <= 0 ) {
+            throw new IllegalArgumentException( "The number of iterations must be positive: " + iterations );
+        }
+        getThreadKeyFactory( prf );
+        pbkdf2Prf = prf;
+        pbkdf2Iterations = iterations;
+    }
+
+    public DerivedKeyCache getDerivedKeyCache() {
+        return derivedKeyCache;
+    }
+
+    /**
+     * Set the cache of keys derived from passwords.
+     * 
+     * @param cache
+     *            The cache, or <tt>null</tt> (the default) to derive every key.
+     */
+    public void setDerivedKeyCache( DerivedKeyCache cache ) {
+        derivedKeyCache = cache;
+    }
+
+    private static byte[] deriveKey( String prf, char[] password, byte[] salt, int iterations )
+            throws CryptoException {
+        PBEKeySpec spec = new PBEKeySpec( password, salt, iterations, ALGORITHM_BITS );
+        try {
+            return getThreadKeyFactory( prf ).generateSecret( spec ).getEncoded();
         } catch ( InvalidKeySpecException e ) {
             throw new CryptoException( e );
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    /**
+     * Get the PBKDF2 key factory of the current thread for the given PRF. Looking up a factory
+     * costs more than deriving a key with few iterations.
+     */
+    private static SecretKeyFactory getThreadKeyFactory( String prf )
+            throws CryptoException {
+        String algorithm = PBKDF2_ALGORITHM_PREFIX + prf;
+        SecretKeyFactory factory = THREAD_KEY_FACTORY.get();
+        if ( factory == null || !factory.getAlgorithm().equals( algorithm ) ) {
+            try {
+                factory = SecretKeyFactory.getInstance( algorithm );
+            } catch ( NoSuchAlgorithmException e ) {
+                throw new CryptoException( e );
+            }
+            THREAD_KEY_FACTORY.set( factory );
         }
+        return factory;
     }
 
     /**
      * Create a cipher using the default algorithm: AES/CBC/PKCS5Padding
+     * <p>
+     * The returned cipher is a new instance that belongs to the caller. The one-shot
+     * <tt>encrypt</tt> and <tt>decrypt</tt> methods instead re-use a cipher per thread.
      * 
      * @param encryptMode
      * @param key
@@ -120,14 +396,92 @@ public class SymmetricCrypto {
      */
     public Cipher createAndInitCipher( int encryptMode, SecretKey key, IvParameterSpec iv )
             throws CryptoException {
+        Cipher cipher = createCipher( CIPHER_ALGORITHM_NAME );
+        initCipher( cipher, encryptMode, key, iv );
+        return cipher;
+    }
+
+    /**
+     * Get the cipher of the current thread, initialized for the given mode, key and IV. Looking up
+     * and creating a cipher costs far more than initializing one, so this saves most of the set up
+     * cost of encrypting small messages.
+     * <p>
+     * The cipher must not be used beyond the current call, as the next call on the same thread
+     * re-initializes it.
+     */
+    /**
+     * Drop the ciphers the calling thread keeps for reuse, and with them the last key they were
+     * initialized with. The next call on the thread creates new ciphers.
+     */
+    public static void clearThreadCiphers() {
+        THREAD_CIPHER.remove();
+        THREAD_GCM_CIPHER.remove();
+        THREAD_CTR_CIPHER.remove();
+    }
+
+    private static Cipher getThreadCipher( int encryptMode, SecretKey key, IvParameterSpec iv )
+            throws CryptoException {
+        return getThreadCipher( THREAD_CIPHER, CIPHER_ALGORITHM_NAME, encryptMode, key, iv );
+    }
+
+    private static Cipher getThreadCipher( ThreadLocal<Cipher> threadCipher, String algorithm, int encryptMode,
+                                           SecretKey key, AlgorithmParameterSpec params )
+            throws CryptoException {
+        Cipher cipher = threadCipher.get();
+        if ( cipher == null ) {
+            cipher = createCipher( algorithm );
+            threadCipher.set( cipher );
+        }
+        initCipher( cipher, encryptMode, key, params );
+        return cipher;
+    }
+
+    private static Cipher createAndInitCtrCipher( int encryptMode, SecretKey key, IvParameterSpec iv )
+            throws CryptoException {
+        Cipher cipher = createCipher( CTR_CIPHER_ALGORITHM_NAME );
+        initCipher( cipher, encryptMode, key, iv );
+        return cipher;
+    }
+
+    private static Cipher createAndInitGcmCipher( int encryptMode, SecretKey key, GCMParameterSpec params,
+                                                  byte[] aad )
+            throws CryptoException {
+        Cipher cipher = createCipher( GCM_CIPHER_ALGORITHM_NAME );
+        initCipher( cipher, encryptMode, key, params );
+        if ( aad != null ) {
+            cipher.updateAAD( aad );
+        }
+        return cipher;
+    }
+
+    /**
+     * Get the AES-GCM cipher of the current thread, initialized for the given mode, key and
+     * parameters, and fed with the additional authenticated data.
+     */
+    private static Cipher getThreadGcmCipher( int encryptMode, SecretKey key, GCMParameterSpec params, byte[] aad )
+            throws CryptoException {
+        Cipher cipher = getThreadCipher( THREAD_GCM_CIPHER, GCM_CIPHER_ALGORITHM_NAME, encryptMode, key, params );
+        if ( aad != null ) {
+            cipher.updateAAD( aad );
+        }
+        return cipher;
+    }
+
+    private static Cipher createCipher( String algorithm )
+            throws CryptoException {
         try {
-            Cipher cipher = Cipher.getInstance( CIPHER_ALGORITHM_NAME );
-            cipher.init( encryptMode, key, iv );
-            return cipher;
+            return Cipher.getInstance( algorithm );
         } catch ( NoSuchAlgorithmException e ) {
             throw new CryptoException( e );
         } catch ( NoSuchPaddingException e ) {
             throw new CryptoException( e );
+        }
+    }
+
+    private static void initCipher( Cipher cipher, int encryptMode, SecretKey key, AlgorithmParameterSpec params )
+            throws CryptoException {
+        try {
+            cipher.init( encryptMode, key, params );
         } catch ( InvalidKeyException e ) {
             throw new CryptoException( e );
         } catch ( InvalidAlgorithmParameterException e ) {
@@ -137,25 +491,547 @@ public class SymmetricCrypto {
 
     public byte[] encrypt( byte[] data, SecretKey key, IvParameterSpec iv )
             throws CryptoException {
-        return crypt( data, key, iv, Cipher.ENCRYPT_MODE );
+        return crypt( data, 0, data.length, getThreadCipher( Cipher.ENCRYPT_MODE, key, iv ) );
     }
 
     public byte[] decrypt( byte[] data, SecretKey key, IvParameterSpec iv )
             throws CryptoException {
-        return crypt( data, key, iv, Cipher.DECRYPT_MODE );
+        return crypt( data, 0, data.length, getThreadCipher( Cipher.DECRYPT_MODE, key, iv ) );
+    }
+
+    /**
+     * Encrypt <tt>length</tt> bytes of <tt>data</tt>, starting at <tt>offset</tt>.
+     */
+    public byte[] encrypt( byte[] data, int offset, int length, SecretKey key, IvParameterSpec iv )
+            throws CryptoException {
+        return crypt( data, offset, length, getThreadCipher( Cipher.ENCRYPT_MODE, key, iv ) );
+    }
+
+    /**
+     * Decrypt <tt>length</tt> bytes of <tt>data</tt>, starting at <tt>offset</tt>.
+     */
+    public byte[] decrypt( byte[] data, int offset, int length, SecretKey key, IvParameterSpec iv )
+            throws CryptoException {
+        return crypt( data, offset, length, getThreadCipher( Cipher.DECRYPT_MODE, key, iv ) );
+    }
+
+    /**
+     * Encrypt the remaining bytes of <tt>src</tt> into <tt>dst</tt>. Both buffers may be direct, in
+     * which case no data is copied onto the heap. On return the position of <tt>src</tt> is at its
+     * limit and the position of <tt>dst</tt> has been advanced by the number of bytes written.
+     * <p>
+     * <tt>dst</tt> must have at least
+     * {@link #getOutputSize(int, int) getOutputSize( Cipher.ENCRYPT_MODE, src.remaining() )} bytes
+     * remaining.
+     * 
+     * @param src
+     * @param dst
+     * @param key
+     * @param iv
+     * @return The number of bytes written to <tt>dst</tt>.
+     * @throws CryptoException
+     *             If <tt>dst</tt> is too small or the encryption fails.
+     */
+    public int encrypt( ByteBuffer src, ByteBuffer dst, SecretKey key, IvParameterSpec iv )
+            throws CryptoException {
+        return crypt( src, dst, getThreadCipher( Cipher.ENCRYPT_MODE, key, iv ) );
     }
 
-    private byte[] crypt( byte[] data, SecretKey key, IvParameterSpec iv, int mode )
+    /**
+     * Decrypt the remaining bytes of <tt>src</tt> into <tt>dst</tt>. Both buffers may be direct, in
+     * which case no data is copied onto the heap. On return the position of <tt>src</tt> is at its
+     * limit and the position of <tt>dst</tt> has been advanced by the number of bytes written.
+     * <p>
+     * <tt>dst</tt> must have at least
+     * {@link #getOutputSize(int, int) getOutputSize( Cipher.DECRYPT_MODE, src.remaining() )} bytes
+     * remaining, even though the decrypted data will be up to one block shorter.
+     * 
+     * @param src
+     * @param dst
+     * @param key
+     * @param iv
+     * @return The number of bytes written to <tt>dst</tt>.
+     * @throws CryptoException
+     *             If <tt>dst</tt> is too small or the decryption fails.
+     */
+    public int decrypt( ByteBuffer src, ByteBuffer dst, SecretKey key, IvParameterSpec iv )
+            throws CryptoException {
+        return crypt( src, dst, getThreadCipher( Cipher.DECRYPT_MODE, key, iv ) );
+    }
+
+    /**
+     * Get the number of bytes of output space needed to encrypt or decrypt <tt>inputLength</tt>
+     * bytes with the default algorithm. This allows callers to allocate their output buffers up
+     * front.
+     * <p>
+     * For {@link Cipher#ENCRYPT_MODE} this is the exact length of the encrypted data. For
+     * {@link Cipher#DECRYPT_MODE} this is an upper bound, as the length of the padding is only known
+     * once the data has been decrypted.
+     * 
+     * @param mode
+     *            Either {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}.
+     * @param inputLength
+     *            The number of bytes to encrypt or decrypt.
+     * @return The number of bytes of output space needed.
+     */
+    public int getOutputSize( int mode, int inputLength ) {
+        if ( mode == Cipher.ENCRYPT_MODE ) {
+            // PKCS5 padding always adds between 1 and 16 bytes.
+            return ( inputLength / ALGORITHM_BLOCK_BYTES + 1 ) * ALGORITHM_BLOCK_BYTES;
+        }
+        return inputLength;
+    }
+
+    /**
+     * Encrypt and authenticate the data with AES-GCM, in a single pass. The authentication tag is
+     * appended to the encrypted data, which makes it {@link GCMParameterSpec#getTLen() tag length}
+     * bits longer than the data.
+     * 
+     * @param data
+     * @param aad
+     *            Additional data that is authenticated but not encrypted, or <tt>null</tt>. The same
+     *            data must be given for decrypting.
+     * @param key
+     * @param params
+     *            The tag length and IV, see {@link #getRandomGcmParameters(int)}.
+     * @return The encrypted data followed by the tag.
+     * @throws CryptoException
+     */
+    public byte[] encryptGcm( byte[] data, byte[] aad, SecretKey key, GCMParameterSpec params )
+            throws CryptoException {
+        return encryptGcm( data, 0, data.length, aad, key, params );
+    }
+
+    /**
+     * Decrypt data encrypted with {@link #encryptGcm(byte[], byte[], SecretKey, GCMParameterSpec)}
+     * and verify its authentication tag.
+     * 
+     * @param data
+     * @param aad
+     * @param key
+     * @param params
+     * @return The decrypted data.
+     * @throws CryptoException
+     *             If the data or the additional data has been modified, or the key is wrong.
+     */
+    public byte[] decryptGcm( byte[] data, byte[] aad, SecretKey key, GCMParameterSpec params )
+            throws CryptoException {
+        return decryptGcm( data, 0, data.length, aad, key, params );
+    }
+
+    /**
+     * Encrypt and authenticate <tt>length</tt> bytes of <tt>data</tt>, starting at <tt>offset</tt>,
+     * with AES-GCM.
+     */
+    public byte[] encryptGcm( byte[] data, int offset, int length, byte[] aad, SecretKey key, GCMParameterSpec params )
+            throws CryptoException {
+        return crypt( data, offset, length, getThreadGcmCipher( Cipher.ENCRYPT_MODE, key, params, aad ) );
+    }
+
+    /**
+     * Decrypt and verify <tt>length</tt> bytes of <tt>data</tt>, starting at <tt>offset</tt>, with
+     * AES-GCM.
+     */
+    public byte[] decryptGcm( byte[] data, int offset, int length, byte[] aad, SecretKey key, GCMParameterSpec params )
+            throws CryptoException {
+        return crypt( data, offset, length, getThreadGcmCipher( Cipher.DECRYPT_MODE, key, params, aad ) );
+    }
+
+    /**
+     * Encrypt and authenticate the remaining bytes of <tt>src</tt> into <tt>dst</tt> with AES-GCM.
+     * <tt>dst</tt> must have at least the length of the data plus the length of the tag remaining.
+     * 
+     * @return The number of bytes written to <tt>dst</tt>.
+     * @throws CryptoException
+     *             If <tt>dst</tt> is too small or the encryption fails.
+     */
+    public int encryptGcm( ByteBuffer src, ByteBuffer dst, byte[] aad, SecretKey key, GCMParameterSpec params )
+            throws CryptoException {
+        return crypt( src, dst, getThreadGcmCipher( Cipher.ENCRYPT_MODE, key, params, aad ) );
+    }
+
+    /**
+     * Decrypt and verify the remaining bytes of <tt>src</tt> into <tt>dst</tt> with AES-GCM.
+     * Nothing is written to <tt>dst</tt> if the tag does not match.
+     * 
+     * @return The number of bytes written to <tt>dst</tt>.
+     * @throws CryptoException
+     *             If <tt>dst</tt> is too small or the data has been modified.
+     */
+    public int decryptGcm( ByteBuffer src, ByteBuffer dst, byte[] aad, SecretKey key, GCMParameterSpec params )
+            throws CryptoException {
+        return crypt( src, dst, getThreadGcmCipher( Cipher.DECRYPT_MODE, key, params, aad ) );
+    }
+
+    /**
+     * Encrypt and authenticate everything read from the <tt>in</tt> stream with AES-GCM and write
+     * the encrypted bytes, followed by the tag, to the <tt>out</tt> stream. The data is processed
+     * through a fixed size buffer.
+     * <p>
+     * Neither stream is closed by this method.
+     * 
+     * @return The number of bytes written to <tt>out</tt>.
+     * @throws CryptoException
+     * @throws IOException
+     *             If reading from <tt>in</tt> or writing to <tt>out</tt> fails.
+     */
+    public long encryptGcm( InputStream in, OutputStream out, byte[] aad, SecretKey key, GCMParameterSpec params )
+            throws CryptoException, IOException {
+        return crypt( in, out, createAndInitGcmCipher( Cipher.ENCRYPT_MODE, key, params, aad ) );
+    }
+
+    /**
+     * Decrypt and verify everything read from the <tt>in</tt> stream with AES-GCM and write the
+     * plain bytes to the <tt>out</tt> stream.
+     * <p>
+     * The decrypted data is only released once the tag has been verified, so unlike
+     * {@link #decrypt(InputStream, OutputStream, SecretKey, IvParameterSpec)} the memory used grows
+     * with the size of the data. Neither stream is closed by this method.
+     * 
+     * @return The number of bytes written to <tt>out</tt>.
+     * @throws CryptoException
+     *             If the data has been modified.
+     * @throws IOException
+     *             If reading from <tt>in</tt> or writing to <tt>out</tt> fails.
+     */
+    public long decryptGcm( InputStream in, OutputStream out, byte[] aad, SecretKey key, GCMParameterSpec params )
+            throws CryptoException, IOException {
+        return crypt( in, out, createAndInitGcmCipher( Cipher.DECRYPT_MODE, key, params, aad ) );
+    }
+
+    /**
+     * Encrypt the data with AES-CTR. The encrypted data has the same length as the data, and any
+     * range of it can be decrypted on its own with
+     * {@link #decryptRange(byte[], long, int, SecretKey, IvParameterSpec)}.
+     * <p>
+     * AES-CTR does not authenticate the data, and an IV must never be used twice with the same key.
+     * 
+     * @param data
+     * @param key
+     * @param iv
+     *            The initial counter block, see {@link #getRandomIV()}.
+     * @return The encrypted data.
+     * @throws CryptoException
+     */
+    public byte[] encryptCtr( byte[] data, SecretKey key, IvParameterSpec iv )
+            throws CryptoException {
+        return crypt( data, 0, data.length, getThreadCipher( THREAD_CTR_CIPHER, CTR_CIPHER_ALGORITHM_NAME,
+                                                             Cipher.ENCRYPT_MODE, key, iv ) );
+    }
+
+    public byte[] decryptCtr( byte[] data, SecretKey key, IvParameterSpec iv )
+            throws CryptoException {
+        return crypt( data, 0, data.length, getThreadCipher( THREAD_CTR_CIPHER, CTR_CIPHER_ALGORITHM_NAME,
+                                                             Cipher.DECRYPT_MODE, key, iv ) );
+    }
+
+    /**
+     * Encrypt everything read from the <tt>in</tt> stream with AES-CTR and write the encrypted
+     * bytes to the <tt>out</tt> stream, through a fixed size buffer. Neither stream is closed by
+     * this method.
+     * 
+     * @return The number of bytes written to <tt>out</tt>.
+     * @see #encryptCtr(byte[], SecretKey, IvParameterSpec)
+     */
+    public long encryptCtr( InputStream in, OutputStream out, SecretKey key, IvParameterSpec iv )
+            throws CryptoException, IOException {
+        return crypt( in, out, createAndInitCtrCipher( Cipher.ENCRYPT_MODE, key, iv ) );
+    }
+
+    /**
+     * Decrypt everything read from the <tt>in</tt> stream with AES-CTR and write the plain bytes
+     * to the <tt>out</tt> stream, through a fixed size buffer. Neither stream is closed by this
+     * method.
+     * 
+     * @return The number of bytes written to <tt>out</tt>.
+     */
+    public long decryptCtr( InputStream in, OutputStream out, SecretKey key, IvParameterSpec iv )
+            throws CryptoException, IOException {
+        return crypt( in, out, createAndInitCtrCipher( Cipher.DECRYPT_MODE, key, iv ) );
+    }
+
+    /**
+     * Decrypt <tt>length</tt> bytes, starting at <tt>offset</tt>, of data encrypted with
+     * {@link #encryptCtr(byte[], SecretKey, IvParameterSpec)}. The counter block for the offset is
+     * computed directly, so only the requested range (rounded down to the start of its AES block)
+     * is decrypted.
+     * 
+     * @param encData
+     *            The whole encrypted data.
+     * @param offset
+     *            The offset of the range in the plain data, which is the same as in the encrypted
+     *            data.
+     * @param length
+     * @param key
+     * @param iv
+     *            The IV the data was encrypted with.
+     * @return The <tt>length</tt> plain bytes.
+     * @throws CryptoException
+     */
+    public byte[] decryptRange( byte[] encData, long offset, int length, SecretKey key, IvParameterSpec iv )
+            throws CryptoException {
+        checkRange( offset, length, encData.length );
+        int skip = (int) ( offset % ALGORITHM_BLOCK_BYTES );
+        Cipher cipher = getRangeCipher( offset, key, iv );
+        // Run the key stream up to the offset within the first block.
+        cipher.update( encData, (int) offset - skip, skip );
+        return crypt( encData, (int) offset, length, cipher );
+    }
+
+    /**
+     * Decrypt <tt>length</tt> bytes, starting at <tt>offset</tt>, of a file encrypted with
+     * {@link #encryptCtr(InputStream, OutputStream, SecretKey, IvParameterSpec)}. Only the requested
+     * range (rounded down to the start of its AES block) is read from the channel, with positional
+     * reads that leave the position of the channel unchanged, so one channel can serve several
+     * threads.
+     * 
+     * @param channel
+     *            The channel holding the encrypted data, starting at position 0.
+     * @param offset
+     * @param length
+     * @param key
+     * @param iv
+     * @return The <tt>length</tt> plain bytes.
+     * @throws CryptoException
+     * @throws IOException
+     */
+    public byte[] decryptRange( FileChannel channel, long offset, int length, SecretKey key, IvParameterSpec iv )
+            throws CryptoException, IOException {
+        checkRange( offset, length, channel.size() );
+        int skip = (int) ( offset % ALGORITHM_BLOCK_BYTES );
+        ByteBuffer buf = ByteBuffer.allocate( skip + length );
+        long position = offset - skip;
+        while ( buf.hasRemaining() ) {
+            int read = channel.read( buf, position + buf.position() );
+            if ( read == -1 ) {
+                throw new EOFException( "The channel ended before the end of the range." );
+            }
+        }
+        Cipher cipher = getRangeCipher( offset, key, iv );
+        cipher.update( buf.array(), 0, skip );
+        return crypt( buf.array(), skip, length, cipher );
+    }
+
+    /**
+     * Get the counter block of the AES block at the given index: the IV plus the index, as a 128
+     * bit big-endian number, which is how AES-CTR increments the counter.
+     */
+    static IvParameterSpec getCounterBlock( IvParameterSpec iv, long blockIndex ) {
+        byte[] counter = iv.getIV().clone();
+        long carry = blockIndex;
+        for ( int i = counter.length - 1; i >= 0 && carry != 0; i-- ) {
+            long sum = ( counter[i] & 0xFF ) + ( carry & 0xFF );
+            counter[i] = (byte) sum;
+            carry = ( carry >>> 8 ) + ( sum >>> 8 );
+        }
+        return new IvParameterSpec( counter );
+    }
+
+    private static Cipher getRangeCipher( long offset, SecretKey key, IvParameterSpec iv )
+            throws CryptoException {
+        IvParameterSpec counter = getCounterBlock( iv, offset / ALGORITHM_BLOCK_BYTES );
+        return getThreadCipher( THREAD_CTR_CIPHER, CTR_CIPHER_ALGORITHM_NAME, Cipher.DECRYPT_MODE, key, counter );
+    }
+
+    private static void checkRange( long offset, int length, long size ) {
+        if ( offset < 0 || length < 0 || offset + length > size ) {
+            throw new IllegalArgumentException( "Invalid range: " + offset + "+" + length + " of " + size );
+        }
+    }
+
+    /**
+     * Encrypt everything read from the <tt>in</tt> stream and write the encrypted bytes to the
+     * <tt>out</tt> stream. The data is processed through a fixed size buffer, so the memory used
+     * does not depend on the size of the data. The output is identical to what
+     * {@link #encrypt(byte[], SecretKey, IvParameterSpec)} would produce for the same data.
+     * <p>
+     * Neither stream is closed by this method.
+     * 
+     * @param in
+     *            The stream of plain data.
+     * @param out
+     *            The stream that will receive the encrypted data.
+     * @param key
+     * @param iv
+     * @return The number of bytes written to <tt>out</tt>.
+     * @throws CryptoException
+     * @throws IOException
+     *             If reading from <tt>in</tt> or writing to <tt>out</tt> fails.
+     */
+    public long encrypt( InputStream in, OutputStream out, SecretKey key, IvParameterSpec iv )
+            throws CryptoException, IOException {
+        return crypt( in, out, createAndInitCipher( Cipher.ENCRYPT_MODE, key, iv ) );
+    }
+
+    /**
+     * Decrypt everything read from the <tt>in</tt> stream and write the plain bytes to the
+     * <tt>out</tt> stream. The data is processed through a fixed size buffer, so the memory used
+     * does not depend on the size of the data.
+     * <p>
+     * Neither stream is closed by this method.
+     * 
+     * @param in
+     *            The stream of encrypted data.
+     * @param out
+     *            The stream that will receive the decrypted data.
+     * @param key
+     * @param iv
+     * @return The number of bytes written to <tt>out</tt>.
+     * @throws CryptoException
+     * @throws IOException
+     *             If reading from <tt>in</tt> or writing to <tt>out</tt> fails.
+     */
+    public long decrypt( InputStream in, OutputStream out, SecretKey key, IvParameterSpec iv )
+            throws CryptoException, IOException {
+        return crypt( in, out, createAndInitCipher( Cipher.DECRYPT_MODE, key, iv ) );
+    }
+
+    /**
+     * Encrypt the file <tt>in</tt> into the file <tt>out</tt>, which is created or replaced. The
+     * output is identical to what {@link #encrypt(byte[], SecretKey, IvParameterSpec)} would
+     * produce for the content of the file.
+     * <p>
+     * The input file is read through memory mapped windows and the output is written from a small
+     * direct buffer, so the content of the files is never held on the heap. See
+     * {@link ChunkedSymmetricCrypto#encryptFile(Path, Path, SecretKey, IvParameterSpec)} for
+     * encrypting files in parallel.
+     * 
+     * @param in
+     * @param out
+     * @param key
+     * @param iv
+     * @return The number of bytes written to <tt>out</tt>.
+     * @throws CryptoException
+     * @throws IOException
+     */
+    public long encryptFile( Path in, Path out, SecretKey key, IvParameterSpec iv )
+            throws CryptoException, IOException {
+        return cryptFile( in, out, key, iv, Cipher.ENCRYPT_MODE );
+    }
+
+    /**
+     * Decrypt the file <tt>in</tt> into the file <tt>out</tt>, which is created or replaced.
+     * <p>
+     * The input file is read through memory mapped windows and the output is written from a small
+     * direct buffer, so the content of the files is never held on the heap.
+     * 
+     * @param in
+     * @param out
+     * @param key
+     * @param iv
+     * @return The number of bytes written to <tt>out</tt>.
+     * @throws CryptoException
+     * @throws IOException
+     */
+    public long decryptFile( Path in, Path out, SecretKey key, IvParameterSpec iv )
+            throws CryptoException, IOException {
+        return cryptFile( in, out, key, iv, Cipher.DECRYPT_MODE );
+    }
+
+    private long cryptFile( Path in, Path out, SecretKey key, IvParameterSpec iv, int mode )
+            throws CryptoException, IOException {
+        Cipher aesCipher = createAndInitCipher( mode, key, iv );
+        // The cipher holds back at most one block between calls, so this is large enough for any
+        // update() and for the final padded block.
+        ByteBuffer outBuf = ByteBuffer.allocateDirect( FILE_BUFFER_SIZE + 2 * aesCipher.getBlockSize() );
+        long total = 0;
+
+        try ( FileChannel inChannel = FileChannel.open( in, StandardOpenOption.READ );
+              FileChannel outChannel = FileChannel.open( out, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                                                         StandardOpenOption.TRUNCATE_EXISTING ) ) {
+            long size = inChannel.size();
+            for ( long position = 0; position < size; position += FILE_WINDOW_SIZE ) {
+                ByteBuffer window =
+                    inChannel.map( MapMode.READ_ONLY, position, Math.min( FILE_WINDOW_SIZE, size - position ) );
+                while ( window.hasRemaining() ) {
+                    ByteBuffer piece = window.duplicate();
+                    piece.limit( Math.min( window.limit(), window.position() + FILE_BUFFER_SIZE ) );
+                    window.position( piece.limit() );
+                    outBuf.clear();
+                    aesCipher.update( piece, outBuf );
+                    total += write( outChannel, outBuf );
+                }
+            }
+            outBuf.clear();
+            aesCipher.doFinal( ByteBuffer.allocate( 0 ), outBuf );
+            total += write( outChannel, outBuf );
+        } catch ( ShortBufferException e ) {
+            throw new CryptoException( e );
+        } catch ( IllegalBlockSizeException e ) {
+            throw new CryptoException( e );
+        } catch ( BadPaddingException e ) {
+            throw new CryptoException( e );
+        }
+
+        return total;
+    }
+
+    private static int write( FileChannel channel, ByteBuffer buf )
+            throws IOException {
+        buf.flip();
+        int length = buf.remaining();
+        while ( buf.hasRemaining() ) {
+            channel.write( buf );
+        }
+        return length;
+    }
+
+    private static int crypt( ByteBuffer src, ByteBuffer dst, Cipher aesCipher )
+            throws CryptoException {
+        try {
+            return aesCipher.doFinal( src, dst );
+        } catch ( ShortBufferException e ) {
+            throw new CryptoException( e );
+        } catch ( IllegalBlockSizeException e ) {
+            throw new CryptoException( e );
+        } catch ( BadPaddingException e ) {
+            throw new CryptoException( e );
+        }
+    }
+
+    private static long crypt( InputStream in, OutputStream out, Cipher aesCipher )
+            throws CryptoException, IOException {
+        byte[] inBuf = new byte[STREAM_BUFFER_SIZE];
+        // The cipher holds back at most one block between calls, so this is large enough for any
+        // update() and for the final padded block.
+        byte[] outBuf = new byte[STREAM_BUFFER_SIZE + 2 * aesCipher.getBlockSize()];
+        long total = 0;
+
+        try {
+            int read;
+            while ( ( read = in.read( inBuf ) ) != -1 ) {
+                int written = aesCipher.update( inBuf, 0, read, outBuf, 0 );
+                out.write( outBuf, 0, written );
+                total += written;
+            }
+            // AES-GCM holds back all the data while decrypting, until the tag has been verified.
+            if ( aesCipher.getOutputSize( 0 ) > outBuf.length ) {
+                outBuf = new byte[aesCipher.getOutputSize( 0 )];
+            }
+            int written = aesCipher.doFinal( outBuf, 0 );
+            out.write( outBuf, 0, written );
+            total += written;
+        } catch ( ShortBufferException e ) {
+            throw new CryptoException( e );
+        } catch ( IllegalBlockSizeException e ) {
+            throw new CryptoException( e );
+        } catch ( BadPaddingException e ) {
+            throw new CryptoException( e );
+        }
+
+        return total;
+    }
+
+    private static byte[] crypt( byte[] data, int offset, int length, Cipher aesCipher )
             throws CryptoException {
         byte[] result = null;
 
         try {
-            Cipher aesCipher = createAndInitCipher( mode, key, iv );
             /**
              * Step 4. Encrypt the Data 1. Declare / Initialize the Data. Here the data is of type
              * String 2. Convert the Input Text to Bytes 3. Encrypt the bytes using doFinal method
              */
-            result = aesCipher.doFinal( data );
+            result = aesCipher.doFinal( data, offset, length );
         } catch ( IllegalBlockSizeException e ) {
             throw new CryptoException( e );
         } catch ( BadPaddingException e ) {
@@ -165,16 +1041,4 @@ public class SymmetricCrypto {
         return result;
     }
 
-    private static KeyGenerator loadKeyGenerator( String algo, int size ) {
-        KeyGenerator gen = null;
-        try {
-            gen = KeyGenerator.getInstance( algo );
-            gen.init( size );
-        } catch ( NoSuchAlgorithmException e ) {
-            LOG.error( "{} is not supported!", algo );
-            LOG.error( "Error is: ", e );
-        }
-        return gen;
-    }
-
 }
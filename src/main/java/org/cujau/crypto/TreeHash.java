@@ -0,0 +1,356 @@
+package org.cujau.crypto;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Hash a large file on several cores. The file is cut into fixed size leaves, the leaves are
+ * hashed in parallel on a fork-join pool, and the root digest is the digest of the leaf digests in
+ * order. The leaf digests are kept in a {@link Manifest}, so that a later check only needs to
+ * re-hash the leaves that are suspect.
+ * <p>
+ * The root digest depends on the leaf size, and is not the plain digest of the file. This class is
+ * thread safe.
+ */
+public class TreeHash {
+
+    public static final int DEFAULT_LEAF_BYTES = 4 * 1024 * 1024;
+
+    private final String algorithm;
+    private final int leafBytes;
+    private final ForkJoinPool pool;
+    private final ThreadLocal<MessageDigest> threadDigest = new ThreadLocal<MessageDigest>();
+
+    /**
+     * Hash with {@link #DEFAULT_LEAF_BYTES} leaves on the common fork-join pool.
+     *
+     * @param algorithm
+     *            The digest algorithm, e.g. <tt>MD5</tt> or <tt>SHA-256</tt>.
+     * @throws CryptoException
+     *             If the algorithm is not available.
+     */
+    public TreeHash( String algorithm )
+            throws CryptoException {
+        this( algorithm, DEFAULT_LEAF_BYTES, ForkJoinPool.commonPool() );
+    }
+
+    public TreeHash( String algorithm, int leafBytes, ForkJoinPool pool )
+            throws CryptoException {
+        if ( leafBytes <= 0 ) {
+            throw new IllegalArgumentException( "The leaf size must be positive: " + leafBytes );
+        }
+        this.algorithm = algorithm;
+        this.leafBytes = leafBytes;
+        this.pool = pool;
+        // Fail early on an unknown algorithm.
+        createDigest( algorithm );
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public int getLeafBytes() {
+        return leafBytes;
+    }
+
+    /**
+     * Hash every leaf of the file.
+     *
+     * @throws IllegalArgumentException
+     *             If the file has more than <tt>Integer.MAX_VALUE</tt> leaves.
+     */
+    public Manifest hash( Path file )
+            throws IOException {
+        FileChannel ch = FileChannel.open( file, StandardOpenOption.READ );
+        try {
+            long size = ch.size();
+            long leafCount = ( size + leafBytes - 1 ) / leafBytes;
+            if ( leafCount > Integer.MAX_VALUE ) {
+                throw new IllegalArgumentException( "Too many leaves for a file of " + size + " bytes: " + leafCount );
+            }
+            int count = (int) leafCount;
+            byte[][] leaves = new byte[count][];
+            invoke( new LeafTask( ch, size, leaves, allLeaves( count ), 0, count ) );
+            return new Manifest( algorithm, leafBytes, size, leaves );
+        } finally {
+            ch.close();
+        }
+    }
+
+    /**
+     * Re-hash every leaf of the file.
+     *
+     * @return The indexes of the leaves that do not match the manifest. All of them if the file
+     *         changed size.
+     */
+    public List<Integer> verify( Path file, Manifest manifest )
+            throws IOException {
+        return verify( file, manifest, null );
+    }
+
+    /**
+     * Re-hash only the given leaves of the file.
+     *
+     * @param leaves
+     *            The indexes of the leaves to check, or <tt>null</tt> for all of them.
+     * @return The indexes of the checked leaves that do not match the manifest. All of them if the
+     *         file changed size.
+     */
+    public List<Integer> verify( Path file, Manifest manifest, Collection<Integer> leaves )
+            throws IOException {
+        if ( !manifest.getAlgorithm().equals( algorithm ) || manifest.getLeafBytes() != leafBytes ) {
+            throw new IllegalArgumentException( "The manifest was made with a different algorithm or leaf size." );
+        }
+        int count = manifest.getLeafCount();
+        int[] indexes = leaves == null ? allLeaves( count ) : toIndexes( leaves, count );
+        FileChannel ch = FileChannel.open( file, StandardOpenOption.READ );
+        try {
+            long size = ch.size();
+            List<Integer> changed = new ArrayList<Integer>();
+            if ( size != manifest.getFileSize() ) {
+                for ( int index : indexes ) {
+                    changed.add( index );
+                }
+                return changed;
+            }
+            byte[][] actual = new byte[count][];
+            invoke( new LeafTask( ch, size, actual, indexes, 0, indexes.length ) );
+            for ( int index : indexes ) {
+                if ( !MessageDigest.isEqual( actual[index], manifest.getLeaf( index ) ) ) {
+                    changed.add( index );
+                }
+            }
+            return changed;
+        } finally {
+            ch.close();
+        }
+    }
+
+    private void invoke( LeafTask task )
+            throws IOException {
+        try {
+            pool.invoke( task );
+        } catch ( UncheckedIOException e ) {
+            throw e.getCause();
+        }
+    }
+
+    private static int[] allLeaves( int count ) {
+        int[] indexes = new int[count];
+        for ( int i = 0; i < count; i++ ) {
+            indexes[i] = i;
+        }
+        return indexes;
+    }
+
+    private static int[] toIndexes( Collection<Integer> leaves, int count ) {
+        int[] indexes = new int[leaves.size()];
+        int i = 0;
+        for ( int index : leaves ) {
+            if ( index < 0 || index >= count ) {
+                throw new IllegalArgumentException( "No such leaf: " + index );
+            }
+            indexes[i++] = index;
+        }
+        return indexes;
+    }
+
+    private byte[] hashLeaf( FileChannel ch, long size, int index )
+            throws IOException {
+        MessageDigest md = threadDigest.get();
+        if ( md == null ) {
+            md = newDigest( algorithm );
+            threadDigest.set( md );
+        }
+        long pos = (long) index * leafBytes;
+        md.update( ch.map( FileChannel.MapMode.READ_ONLY, pos, Math.min( leafBytes, size - pos ) ) );
+        return md.digest();
+    }
+
+    private static MessageDigest createDigest( String algorithm )
+            throws CryptoException {
+        try {
+            return MessageDigest.getInstance( algorithm );
+        } catch ( NoSuchAlgorithmException e ) {
+            throw new CryptoException( e );
+        }
+    }
+
+    /**
+     * For algorithms already checked by the constructor.
+     */
+    private static MessageDigest newDigest( String algorithm ) {
+        try {
+            return MessageDigest.getInstance( algorithm );
+        } catch ( NoSuchAlgorithmException e ) {
+            throw new IllegalStateException( e );
+        }
+    }
+
+    /**
+     * Hashes a range of the leaf indexes, splitting it in half until it is a single leaf.
+     */
+    private class LeafTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel ch;
+        private final long size;
+        private final byte[][] digests;
+        private final int[] indexes;
+        private final int from;
+        private final int to;
+
+        LeafTask( FileChannel ch, long size, byte[][] digests, int[] indexes, int from, int to ) {
+            this.ch = ch;
+            this.size = size;
+            this.digests = digests;
+            this.indexes = indexes;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if ( to - from > 1 ) {
+                int mid = ( from + to ) >>> 1;
+                invokeAll( new LeafTask( ch, size, digests, indexes, from, mid ),
+                           new LeafTask( ch, size, digests, indexes, mid, to ) );
+                return;
+            }
+            for ( int i = from; i < to; i++ ) {
+                try {
+                    digests[indexes[i]] = hashLeaf( ch, size, indexes[i] );
+                } catch ( IOException e ) {
+                    throw new UncheckedIOException( e );
+                }
+            }
+        }
+    }
+
+    /**
+     * The leaf digests and root digest of a file.
+     * <p>
+     * The serialized form is <tt>algorithm length (2 bytes) | algorithm | leaf size (4 bytes) |
+     * file size (8 bytes) | leaf count (4 bytes) | digest length (2 bytes) | leaf digests</tt>, all
+     * numbers big-endian. The root digest is computed from the leaves.
+     */
+    public static class Manifest {
+
+        private final String algorithm;
+        private final int leafBytes;
+        private final long fileSize;
+        private final byte[][] leaves;
+        private final byte[] root;
+
+        Manifest( String algorithm, int leafBytes, long fileSize, byte[][] leaves ) {
+            this.algorithm = algorithm;
+            this.leafBytes = leafBytes;
+            this.fileSize = fileSize;
+            this.leaves = leaves;
+            MessageDigest md = newDigest( algorithm );
+            for ( byte[] leaf : leaves ) {
+                md.update( leaf );
+            }
+            this.root = md.digest();
+        }
+
+        public String getAlgorithm() {
+            return algorithm;
+        }
+
+        public int getLeafBytes() {
+            return leafBytes;
+        }
+
+        public long getFileSize() {
+            return fileSize;
+        }
+
+        public int getLeafCount() {
+            return leaves.length;
+        }
+
+        public byte[] getLeaf( int index ) {
+            return leaves[index].clone();
+        }
+
+        public byte[] getRoot() {
+            return root.clone();
+        }
+
+        public byte[] toBytes() {
+            byte[] name = algorithm.getBytes( StandardCharsets.UTF_8 );
+            int digestBytes = root.length;
+            ByteBuffer buf = ByteBuffer.allocate( 2 + name.length + 4 + 8 + 4 + 2 + leaves.length * digestBytes );
+            buf.putShort( (short) name.length ).put( name );
+            buf.putInt( leafBytes ).putLong( fileSize ).putInt( leaves.length ).putShort( (short) digestBytes );
+            for ( byte[] leaf : leaves ) {
+                buf.put( leaf );
+            }
+            return buf.array();
+        }
+
+        /**
+         * Read a manifest written by {@link #toBytes()}.
+         *
+         * @throws CryptoException
+         *             If the bytes do not hold a manifest, or the algorithm is not available.
+         */
+        public static Manifest fromBytes( byte[] bytes )
+                throws CryptoException {
+            try {
+                ByteBuffer buf = ByteBuffer.wrap( bytes );
+                byte[] name = new byte[buf.getShort() & 0xFFFF];
+                buf.get( name );
+                String algorithm = new String( name, StandardCharsets.UTF_8 );
+                int digestLength = createDigest( algorithm ).getDigestLength();
+                int leafBytes = buf.getInt();
+                long fileSize = buf.getLong();
+                int count = buf.getInt();
+                if ( leafBytes <= 0 || fileSize < 0 || count != ( fileSize + leafBytes - 1 ) / leafBytes
+                     || ( buf.getShort() & 0xFFFF ) != digestLength
+                     || buf.remaining() != (long) count * digestLength ) {
+                    throw new CryptoException( "Invalid manifest." );
+                }
+                byte[][] leaves = new byte[count][digestLength];
+                for ( byte[] leaf : leaves ) {
+                    buf.get( leaf );
+                }
+                return new Manifest( algorithm, leafBytes, fileSize, leaves );
+            } catch ( BufferUnderflowException e ) {
+                throw new CryptoException( "Manifest is too short." );
+            }
+        }
+
+        @Override
+        public boolean equals( Object obj ) {
+            if ( !( obj instanceof Manifest ) ) {
+                return false;
+            }
+            Manifest other = (Manifest) obj;
+            return algorithm.equals( other.algorithm ) && leafBytes == other.leafBytes && fileSize == other.fileSize
+                   && Arrays.deepEquals( leaves, other.leaves );
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode( root );
+        }
+    }
+}
@@ -9,6 +9,13 @@ import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.cujau.utils.Base64;
 import org.cujau.utils.ResourceUtil;
@@ -201,4 +208,81 @@ public class AsymmetricCryptoTest {
         }
         assertNull( encStr );
     }
+
+    @Test
+    public void testKeySizeBytes() {
+        assertTrue( cry.getKeySizeBytes() == 256 );
+
+        AsymmetricCrypto pubOnly = new AsymmetricCrypto();
+        pubOnly.setPublicKey( cry.getPublicKey() );
+        assertTrue( pubOnly.getKeySizeBytes() == 256 );
+
+        AsymmetricCrypto privOnly = new AsymmetricCrypto();
+        privOnly.setPrivateKey( cry.getPrivateKey() );
+        assertTrue( privOnly.getKeySizeBytes() == 256 );
+    }
+
+    @Test
+    public void testKeyId() {
+        byte[] keyId = cry.getKeyId();
+        assertTrue( keyId.length == AsymmetricCrypto.KEY_ID_BYTES );
+
+        // The public and the private key of a pair have the same id.
+        AsymmetricCrypto pubOnly = new AsymmetricCrypto();
+        pubOnly.setPublicKey( cry.getPublicKey() );
+        AsymmetricCrypto privOnly = new AsymmetricCrypto();
+        privOnly.setPrivateKey( cry.getPrivateKey() );
+        assertTrue( Arrays.equals( keyId, pubOnly.getKeyId() ) );
+        assertTrue( Arrays.equals( keyId, privOnly.getKeyId() ) );
+        assertNull( new AsymmetricCrypto().getKeyId() );
+    }
+
+    @Test
+    public void testMissingKey()
+            throws UnsupportedEncodingException {
+        AsymmetricCrypto pubOnly = new AsymmetricCrypto();
+        pubOnly.setPublicKey( cry.getPublicKey() );
+
+        byte[] encStr = null;
+        try {
+            encStr = pubOnly.encryptWithPrivateKey( "abc".getBytes( "UTF-8" ) );
+        } catch ( CryptoException e ) {
+            LOG.debug( e.getMessage() );
+            assertTrue( true );
+        }
+        assertNull( encStr );
+    }
+
+    @Test
+    public void testConcurrentEncryptDecrypt()
+            throws Exception {
+        final String str = "abcdefghijklmnopqrstuvwxyz";
+        ExecutorService executor = Executors.newFixedThreadPool( 8 );
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for ( int i = 0; i < 32; i++ ) {
+                results.add( executor.submit( new Callable<Boolean>() {
+                    public Boolean call()
+                            throws Exception {
+                        for ( int j = 0; j < 10; j++ ) {
+                            byte[] encStr = cry.encryptWithPublicKey( str.getBytes( "UTF-8" ) );
+                            if ( !str.equals( new String( cry.decryptWithPrivateKey( encStr ), "UTF-8" ) ) ) {
+                                return false;
+                            }
+                            encStr = cry.encryptWithPrivateKey( str.getBytes( "UTF-8" ) );
+                            if ( !str.equals( new String( cry.decryptWithPublicKey( encStr ), "UTF-8" ) ) ) {
+                                return false;
+                            }
+                        }
+                        return true;
+                    }
+                } ) );
+            }
+            for ( Future<Boolean> result : results ) {
+                assertTrue( result.get() );
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
 }
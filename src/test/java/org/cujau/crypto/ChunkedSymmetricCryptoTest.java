@@ -0,0 +1,191 @@
+package org.cujau.crypto;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+import org.cujau.utils.ResourceUtil;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ChunkedSymmetricCryptoTest {
+
+    private static final int CHUNK_SIZE = 1024;
+
+    private SymmetricCrypto symmetric;
+    private ChunkedSymmetricCrypto cry;
+    private SecretKey key;
+    private IvParameterSpec iv;
+
+    @Before
+    public void before()
+            throws CryptoException {
+        symmetric = new SymmetricCrypto();
+        cry = new ChunkedSymmetricCrypto( symmetric, CHUNK_SIZE, ForkJoinPool.commonPool() );
+        key = symmetric.getRandomKey();
+        iv = symmetric.getRandomIV();
+    }
+
+    @Test
+    public void testBigEncryptDecrypt()
+            throws IOException, CryptoException {
+        String bigStr = ResourceUtil.getResourceAsString( "/testBigText.txt" );
+        byte[] strB = bigStr.getBytes( "UTF-8" );
+        assertTrue( strB.length > CHUNK_SIZE * 4 );
+
+        byte[] encStr = cry.encrypt( strB, key, iv );
+        assertTrue( encStr.length == cry.getEncryptedSize( strB.length ) );
+
+        byte[] deStr = cry.decrypt( encStr, key, iv );
+        assertArrayEquals( strB, deStr );
+    }
+
+    @Test
+    public void testChunkBoundaries()
+            throws CryptoException {
+        int[] lengths = { 0, 1, CHUNK_SIZE - 1, CHUNK_SIZE, CHUNK_SIZE + 1, CHUNK_SIZE * 3 };
+        for ( int length : lengths ) {
+            byte[] data = new byte[length];
+            Arrays.fill( data, (byte) 'x' );
+            byte[] encData = cry.encrypt( data, key, iv );
+            assertTrue( encData.length == cry.getEncryptedSize( length ) );
+            assertArrayEquals( data, cry.decrypt( encData, key, iv ) );
+        }
+    }
+
+    @Test
+    public void testSingleChunkMatchesSymmetric()
+            throws CryptoException {
+        byte[] data = "abcdefghijklmnopqrstuvwxyz".getBytes();
+        byte[] encData = cry.encrypt( data, key, iv );
+        byte[] body = Arrays.copyOfRange( encData, ChunkedSymmetricCrypto.HEADER_BYTES, encData.length );
+        assertArrayEquals( symmetric.encrypt( data, key, iv ), body );
+    }
+
+    @Test
+    public void testChunkSizeReadFromHeader()
+            throws CryptoException {
+        byte[] data = new byte[CHUNK_SIZE * 5 + 7];
+        byte[] encData = cry.encrypt( data, key, iv );
+
+        ChunkedSymmetricCrypto other = new ChunkedSymmetricCrypto( symmetric );
+        assertArrayEquals( data, other.decrypt( encData, key, iv ) );
+    }
+
+    @Test
+    public void testWrongKey()
+            throws CryptoException {
+        byte[] encData = cry.encrypt( new byte[CHUNK_SIZE * 3], key, iv );
+        byte[] deData = null;
+        try {
+            deData = cry.decrypt( encData, symmetric.getRandomKey(), iv );
+        } catch ( CryptoException e ) {
+            assertTrue( true );
+        }
+        assertNull( deData );
+    }
+
+    @Test
+    public void testTruncated()
+            throws CryptoException {
+        byte[] encData = cry.encrypt( new byte[CHUNK_SIZE * 3], key, iv );
+        int encChunkSize = CHUNK_SIZE + SymmetricCrypto.ALGORITHM_BLOCK_BYTES;
+        // Cut after two whole chunks, which still decrypt with valid padding.
+        byte[] cut = Arrays.copyOf( encData, ChunkedSymmetricCrypto.HEADER_BYTES + 2 * encChunkSize );
+        byte[] deData = null;
+        try {
+            deData = cry.decrypt( cut, key, iv );
+        } catch ( CryptoException e ) {
+            assertTrue( e.getMessage().contains( "truncated" ) );
+        }
+        assertNull( deData );
+    }
+
+    @Test
+    public void testRejectsOtherVersions()
+            throws CryptoException {
+        byte[] encData = cry.encrypt( new byte[CHUNK_SIZE * 3], key, iv );
+        // An older version number must not switch off the length checks of a truncated payload.
+        byte[] cut = Arrays.copyOf( encData, encData.length - CHUNK_SIZE - SymmetricCrypto.ALGORITHM_BLOCK_BYTES );
+        cut[ChunkedSymmetricCrypto.MAGIC.length] = 1;
+        try {
+            cry.decrypt( cut, key, iv );
+            fail( "Decrypted another format version." );
+        } catch ( CryptoException e ) {
+            assertTrue( e.getMessage().contains( "version" ) );
+        }
+    }
+
+    @Test
+    public void testNotChunked()
+            throws CryptoException {
+        byte[] encData = symmetric.encrypt( new byte[100], key, iv );
+        byte[] deData = null;
+        try {
+            deData = cry.decrypt( encData, key, iv );
+        } catch ( CryptoException e ) {
+            assertTrue( true );
+        }
+        assertNull( deData );
+    }
+
+    @Test
+    public void testFileEncryptDecrypt()
+            throws IOException, CryptoException {
+        String bigStr = ResourceUtil.getResourceAsString( "/testBigText.txt" );
+        byte[] strB = bigStr.getBytes( "UTF-8" );
+
+        // Several workers, so that the file is split into several windows.
+        ForkJoinPool pool = new ForkJoinPool( 4 );
+        ChunkedSymmetricCrypto fileCry = new ChunkedSymmetricCrypto( symmetric, CHUNK_SIZE, pool );
+
+        Path plainFile = Files.createTempFile( "cujau-crypto", ".txt" );
+        Path encFile = Files.createTempFile( "cujau-crypto", ".enc" );
+        Path decFile = Files.createTempFile( "cujau-crypto", ".dec" );
+        try {
+            Files.write( plainFile, strB );
+            fileCry.encryptFile( plainFile, encFile, key, iv );
+            assertArrayEquals( cry.encrypt( strB, key, iv ), Files.readAllBytes( encFile ) );
+
+            fileCry.decryptFile( encFile, decFile, key, iv );
+            assertArrayEquals( strB, Files.readAllBytes( decFile ) );
+
+            // A file cut after whole chunks.
+            byte[] encBytes = Files.readAllBytes( encFile );
+            Files.write( encFile, Arrays.copyOf( encBytes, ChunkedSymmetricCrypto.HEADER_BYTES
+                                                           + 2 * ( CHUNK_SIZE + SymmetricCrypto.ALGORITHM_BLOCK_BYTES ) ) );
+            try {
+                fileCry.decryptFile( encFile, decFile, key, iv );
+                fail( "Decrypted a truncated file." );
+            } catch ( CryptoException e ) {
+                assertTrue( e.getMessage().contains( "truncated" ) );
+            }
+
+            // Empty files.
+            Files.write( plainFile, new byte[0] );
+            fileCry.encryptFile( plainFile, encFile, key, iv );
+            fileCry.decryptFile( encFile, decFile, key, iv );
+            assertTrue( Files.size( decFile ) == 0 );
+        } finally {
+            pool.shutdown();
+            Files.delete( plainFile );
+            Files.delete( encFile );
+            Files.delete( decFile );
+        }
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testInvalidChunkSize() {
+        new ChunkedSymmetricCrypto( symmetric, 1000, ForkJoinPool.commonPool() );
+    }
+}
@@ -0,0 +1,57 @@
+package org.cujau.crypto;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ExpiringLruCacheTest {
+
+    @Test
+    public void testLeastRecentlyUsedEviction() {
+        final List<String> removed = new ArrayList<String>();
+        ExpiringLruCache<String, String> cache = new ExpiringLruCache<String, String>( 2, 60000 ) {
+            @Override
+            protected void removed( String value ) {
+                removed.add( value );
+            }
+        };
+        cache.put( "a", "A" );
+        cache.put( "b", "B" );
+        // Touch "a" so that "b" is the least recently used.
+        assertTrue( "A".equals( cache.get( "a" ) ) );
+        cache.put( "c", "C" );
+
+        assertTrue( cache.size() == 2 );
+        assertNull( cache.get( "b" ) );
+        assertTrue( "A".equals( cache.get( "a" ) ) );
+        assertTrue( "C".equals( cache.get( "c" ) ) );
+        assertTrue( cache.getEvictions() == 1 );
+        assertTrue( cache.getHits() == 3 );
+        assertTrue( cache.getMisses() == 1 );
+        assertTrue( removed.size() == 1 && removed.get( 0 ).equals( "B" ) );
+
+        cache.clear();
+        assertTrue( cache.size() == 0 );
+        assertTrue( removed.size() == 3 );
+    }
+
+    @Test
+    public void testExpiry()
+            throws InterruptedException {
+        ExpiringLruCache<String, String> cache = new ExpiringLruCache<String, String>( 10, 20 );
+        cache.put( "a", "A" );
+        assertTrue( "A".equals( cache.get( "a" ) ) );
+        Thread.sleep( 50 );
+        assertNull( cache.get( "a" ) );
+        assertTrue( cache.size() == 0 );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testInvalidSize() {
+        new ExpiringLruCache<String, String>( 0, 1000 );
+    }
+}
@@ -1,12 +1,31 @@
 package org.cujau.crypto;
 
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.AEADBadTagException;
 
 import org.cujau.utils.Base64;
 import org.cujau.utils.ResourceUtil;
@@ -28,11 +47,12 @@ public class HybridCryptoTest {
     private static final String KEYSTORE_ALIAS = "cujau";
     private static final String KEYSTORE_ALIAS_PASSWORD = "changeit";
 
+    private AsymmetricCrypto asymmetric;
     private HybridCrypto hybrid;
 
     @Before
     public void before() {
-        AsymmetricCrypto asymmetric = new AsymmetricCrypto();
+        asymmetric = new AsymmetricCrypto();
 
         InputStream certStream = getClass().getResourceAsStream( CERTSTORE_RESOURCE );
         PublicKey pub = AsymmetricCrypto.loadPublicKey( certStream, CERTSTORE_PASSWORD, CERTSTORE_ALIAS );
@@ -74,6 +94,492 @@ public class HybridCryptoTest {
 
     }
 
+    @Test
+    public void testCryptoV2()
+            throws CryptoException, IOException {
+        hybrid.setBundleVersion( HybridCrypto.BUNDLE_V2 );
+
+        String resStr = "abcdefghijklmnopqrstuvwxyz";
+        doOneTest( resStr );
+
+        resStr = ResourceUtil.getResourceAsString( "/testBigText.txt" );
+        doOneTest( resStr );
+
+        resStr = ResourceUtil.getResourceAsString( "/testXMLText.xml" );
+        doOneTestWithBase64( resStr );
+    }
+
+    @Test
+    public void testBundleV2Size()
+            throws CryptoException, UnsupportedEncodingException {
+        byte[] data = "abcdefghijklmnopqrstuvwxyz".getBytes( "UTF-8" );
+        byte[] encV1 = hybrid.encryptWithPublicKey( data );
+        hybrid.setBundleVersion( HybridCrypto.BUNDLE_V2 );
+        byte[] encV2 = hybrid.encryptWithPublicKey( data );
+
+        assertTrue( encV1.length == 256 * 2 + 32 );
+        assertTrue( encV2.length == HybridCrypto.BUNDLE_HEADER_BYTES + 256 + 32 );
+    }
+
+    @Test
+    public void testV2ReadsV1()
+            throws CryptoException, UnsupportedEncodingException {
+        String str = "abcdefghijklmnopqrstuvwxyz";
+        byte[] encV1 = hybrid.encryptWithPublicKey( str.getBytes( "UTF-8" ) );
+
+        // The bundle version only affects encryption, both layouts are always decrypted.
+        hybrid.setBundleVersion( HybridCrypto.BUNDLE_V2 );
+        assertTrue( str.equals( new String( hybrid.decryptWithPrivateKey( encV1 ), "UTF-8" ) ) );
+        byte[] encV2 = hybrid.encryptWithPublicKey( str.getBytes( "UTF-8" ) );
+
+        hybrid.setBundleVersion( HybridCrypto.BUNDLE_V1 );
+        assertTrue( str.equals( new String( hybrid.decryptWithPrivateKey( encV2 ), "UTF-8" ) ) );
+    }
+
+    @Test
+    public void testSessionKeyCache()
+            throws CryptoException, UnsupportedEncodingException {
+        SessionKeyCache cache = new SessionKeyCache( 10, 60000 );
+        hybrid.setSessionKeyCache( cache );
+
+        String str = "abcdefghijklmnopqrstuvwxyz";
+        byte[] encV1 = hybrid.encryptWithPublicKey( str.getBytes( "UTF-8" ) );
+        hybrid.setBundleVersion( HybridCrypto.BUNDLE_V2 );
+        byte[] encV2 = hybrid.encryptWithPublicKey( str.getBytes( "UTF-8" ) );
+
+        // V1 bundles unwrap the key and the IV separately, V2 bundles both together.
+        assertTrue( str.equals( new String( hybrid.decryptWithPrivateKey( encV1 ), "UTF-8" ) ) );
+        assertTrue( str.equals( new String( hybrid.decryptWithPrivateKey( encV2 ), "UTF-8" ) ) );
+        assertTrue( cache.getMisses() == 3 );
+        assertTrue( cache.getHits() == 0 );
+        assertTrue( cache.size() == 3 );
+
+        assertTrue( str.equals( new String( hybrid.decryptWithPrivateKey( encV1 ), "UTF-8" ) ) );
+        assertTrue( str.equals( new String( hybrid.decryptWithPrivateKey( encV2 ), "UTF-8" ) ) );
+        assertTrue( cache.getMisses() == 3 );
+        assertTrue( cache.getHits() == 3 );
+    }
+
+    @Test
+    public void testSessionKeyCacheSharedByKeys()
+            throws CryptoException, UnsupportedEncodingException, NoSuchAlgorithmException {
+        SessionKeyCache cache = new SessionKeyCache( 10, 60000 );
+        hybrid.setSessionKeyCache( cache );
+        hybrid.setBundleVersion( HybridCrypto.BUNDLE_V2 );
+        byte[] data = "abcdefghijklmnopqrstuvwxyz".getBytes( "UTF-8" );
+        byte[] encData = hybrid.encryptWithPublicKey( data );
+        assertTrue( Arrays.equals( data, hybrid.decryptWithPrivateKey( encData ) ) );
+
+        // Another key pair with the same cache must not get the cached key.
+        KeyPair pair = newKeyPair();
+        AsymmetricCrypto other = new AsymmetricCrypto();
+        other.setPublicKey( pair.getPublic() );
+        other.setPrivateKey( pair.getPrivate() );
+        HybridCrypto otherHybrid = new HybridCrypto( other );
+        otherHybrid.setSessionKeyCache( cache );
+        try {
+            otherHybrid.decryptWithPrivateKey( encData );
+            fail( "Decrypted with the key of another key pair." );
+        } catch ( CryptoException e ) {
+            assertTrue( cache.getHits() == 0 );
+        }
+    }
+
+    @Test
+    public void testSessionKeyCacheConcurrentEviction()
+            throws Exception {
+        // A single entry, so that every put evicts the key the readers are looking up.
+        final SessionKeyCache cache = new SessionKeyCache( 1, 60000 );
+        final ByteBuffer digest = SessionKeyCache.digest( new byte[8], new byte[] { 1 }, true );
+        final ByteBuffer otherDigest = SessionKeyCache.digest( new byte[8], new byte[] { 2 }, true );
+        final byte[] key = new byte[32];
+        Arrays.fill( key, (byte) 0x5A );
+        ExecutorService exec = Executors.newFixedThreadPool( 3 );
+        try {
+            List<Future<Integer>> readers = new ArrayList<Future<Integer>>();
+            for ( int t = 0; t < 2; t++ ) {
+                readers.add( exec.submit( new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        int corrupted = 0;
+                        for ( int i = 0; i < 200000; i++ ) {
+                            byte[] found = cache.get( digest );
+                            if ( found != null && !Arrays.equals( key, found ) ) {
+                                corrupted++;
+                            }
+                        }
+                        return corrupted;
+                    }
+                } ) );
+            }
+            Future<?> writer = exec.submit( new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for ( int i = 0; i < 200000; i++ ) {
+                        cache.put( digest, key );
+                        cache.put( otherDigest, key );
+                    }
+                    return null;
+                }
+            } );
+            writer.get();
+            for ( Future<Integer> reader : readers ) {
+                assertTrue( reader.get() == 0 );
+            }
+            assertTrue( cache.getEvictions() > 0 );
+        } finally {
+            exec.shutdown();
+        }
+    }
+
+    @Test
+    public void testDataKeyReuse()
+            throws CryptoException, UnsupportedEncodingException {
+        SessionKeyCache cache = new SessionKeyCache( 10, 60000 );
+        hybrid.setSessionKeyCache( cache );
+        hybrid.setDataKeyReuse( 3, 60000 );
+
+        String str = "abcdefghijklmnopqrstuvwxyz";
+        byte[][] encData = new byte[4][];
+        for ( int i = 0; i < encData.length; i++ ) {
+            encData[i] = hybrid.encryptWithPublicKey( str.getBytes( "UTF-8" ) );
+            assertTrue( encData[i][HybridCrypto.BUNDLE_MAGIC.length] == HybridCrypto.BUNDLE_V3 );
+        }
+        // The first three bundles share the encrypted key, the fourth starts a new window.
+        assertTrue( Arrays.equals( encryptedKey( encData[0] ), encryptedKey( encData[1] ) ) );
+        assertTrue( Arrays.equals( encryptedKey( encData[0] ), encryptedKey( encData[2] ) ) );
+        assertFalse( Arrays.equals( encryptedKey( encData[0] ), encryptedKey( encData[3] ) ) );
+        // ... but every bundle has its own IV.
+        assertFalse( Arrays.equals( encData[0], encData[1] ) );
+
+        for ( byte[] enc : encData ) {
+            assertTrue( str.equals( new String( hybrid.decryptWithPrivateKey( enc ), "UTF-8" ) ) );
+        }
+        assertTrue( cache.getMisses() == 2 );
+        assertTrue( cache.getHits() == 2 );
+
+        // Turning reuse off goes back to a new key per message.
+        hybrid.setDataKeyReuse( 0, 0 );
+        byte[] enc = hybrid.encryptWithPublicKey( str.getBytes( "UTF-8" ) );
+        assertTrue( enc.length == 256 * 2 + 32 );
+    }
+
+    @Test
+    public void testDataKeyReuseExpiry()
+            throws CryptoException, UnsupportedEncodingException, InterruptedException {
+        hybrid.setDataKeyReuse( 100, 20 );
+        byte[] data = "abcdefghijklmnopqrstuvwxyz".getBytes( "UTF-8" );
+        byte[] enc1 = hybrid.encryptWithPrivateKey( data );
+        Thread.sleep( 50 );
+        byte[] enc2 = hybrid.encryptWithPrivateKey( data );
+        assertFalse( Arrays.equals( encryptedKey( enc1 ), encryptedKey( enc2 ) ) );
+        assertTrue( Arrays.equals( data, hybrid.decryptWithPublicKey( enc2 ) ) );
+    }
+
+    @Test
+    public void testMultipleRecipients()
+            throws CryptoException, IOException, NoSuchAlgorithmException {
+        byte[] data = ResourceUtil.getResourceAsString( "/testBigText.txt" ).getBytes( "UTF-8" );
+        KeyPair pair = newKeyPair();
+        AsymmetricCrypto other = new AsymmetricCrypto();
+        other.setPublicKey( pair.getPublic() );
+        other.setPrivateKey( pair.getPrivate() );
+        AsymmetricCrypto otherPubOnly = new AsymmetricCrypto();
+        otherPubOnly.setPublicKey( pair.getPublic() );
+
+        byte[] encData = hybrid.encryptForRecipients( data, Arrays.asList( otherPubOnly, asymmetric ) );
+        assertTrue( encData[3] == HybridCrypto.BUNDLE_V4 );
+        assertTrue( Arrays.equals( data, hybrid.decryptWithPrivateKey( encData ) ) );
+        assertTrue( Arrays.equals( data, new HybridCrypto( other ).decryptWithPrivateKey( encData ) ) );
+
+        // Not a recipient.
+        byte[] encData2 = new HybridCrypto( other ).encryptForRecipients( data, Arrays.asList( otherPubOnly ) );
+        byte[] data2 = null;
+        try {
+            data2 = hybrid.decryptWithPrivateKey( encData2 );
+        } catch ( CryptoException e ) {
+            assertTrue( true );
+        }
+        assertTrue( data2 == null );
+    }
+
+    @Test
+    public void testKeyIdHeader()
+            throws CryptoException, IOException, NoSuchAlgorithmException {
+        byte[] data = ResourceUtil.getResourceAsString( "/testBigText.txt" ).getBytes( "UTF-8" );
+        hybrid.setKeyIdHeader( true );
+        byte[] encData = hybrid.encryptWithPublicKey( data );
+        assertTrue( encData[3] == HybridCrypto.BUNDLE_V2 );
+        assertTrue( encData[4] == HybridCrypto.BUNDLE_FLAG_KEY_ID );
+        assertTrue( encData.length == hybrid.getBundleSize( data.length ) );
+        assertTrue( Arrays.equals( asymmetric.getKeyId(),
+                                   Arrays.copyOfRange( encData, HybridCrypto.BUNDLE_HEADER_BYTES,
+                                                       HybridCrypto.BUNDLE_HEADER_BYTES + AsymmetricCrypto.KEY_ID_BYTES ) ) );
+        assertTrue( HybridCrypto.getKeyIds( encData, 0, encData.length ).size() == 1 );
+        // Any hybrid crypto with the key decrypts it, also from a stream.
+        assertTrue( Arrays.equals( data, new HybridCrypto( asymmetric ).decryptWithPrivateKey( encData ) ) );
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        hybrid.decryptWithPrivateKey( new ByteArrayInputStream( encData ), out );
+        assertTrue( Arrays.equals( data, out.toByteArray() ) );
+
+        // Authenticated and with data key reuse.
+        hybrid.setAuthenticated( true );
+        hybrid.setDataKeyReuse( 10, 60000 );
+        encData = hybrid.encryptWithPublicKey( data );
+        assertTrue( encData[3] == HybridCrypto.BUNDLE_V3 );
+        assertTrue( encData[4] == ( HybridCrypto.BUNDLE_FLAG_GCM | HybridCrypto.BUNDLE_FLAG_KEY_ID ) );
+        assertTrue( Arrays.equals( data, hybrid.decryptWithPrivateKey( encData ) ) );
+        assertFalse( decrypts( modified( encData, HybridCrypto.BUNDLE_HEADER_BYTES ) ) );
+
+        // Another key fails without decrypting.
+        KeyPair pair = newKeyPair();
+        final AtomicInteger unwraps = new AtomicInteger();
+        AsymmetricCrypto other = new AsymmetricCrypto() {
+            @Override
+            public byte[] decryptWithPrivateKey( byte[] data )
+                    throws CryptoException {
+                unwraps.incrementAndGet();
+                return super.decryptWithPrivateKey( data );
+            }
+        };
+        other.setPublicKey( pair.getPublic() );
+        other.setPrivateKey( pair.getPrivate() );
+        HybridCrypto otherHybrid = new HybridCrypto( other );
+
+        // A long bundle, a short one, and a GCM one that has the length of a V1 bundle.
+        hybrid.setDataKeyReuse( 0, 0 );
+        byte[][] bundles = { encData, hybrid.encryptWithPublicKey( new byte[10] ),
+                             hybrid.encryptWithPublicKey( new byte[243] ) };
+        assertTrue( bundles[2].length == 2 * 256 + 16 );
+        for ( byte[] bundle : bundles ) {
+            assertWrongKey( otherHybrid, bundle, false );
+            assertWrongKey( otherHybrid, bundle, true );
+        }
+        assertTrue( unwraps.get() == 0 );
+    }
+
+    private static void assertWrongKey( HybridCrypto hybrid, byte[] encBundle, boolean stream )
+            throws IOException {
+        try {
+            if ( stream ) {
+                hybrid.decryptWithPrivateKey( new ByteArrayInputStream( encBundle ), new ByteArrayOutputStream() );
+            } else {
+                hybrid.decryptWithPrivateKey( encBundle );
+            }
+            fail( "Decrypted with another key." );
+        } catch ( CryptoException e ) {
+            assertTrue( e.getMessage().contains( "not encrypted for this key" ) );
+        }
+    }
+
+    @Test
+    public void testBundleInPlace()
+            throws CryptoException, IOException {
+        byte[] data = ResourceUtil.getResourceAsString( "/testBigText.txt" ).getBytes( "UTF-8" );
+        int[] versions = { HybridCrypto.BUNDLE_V1, HybridCrypto.BUNDLE_V2 };
+        for ( int version : versions ) {
+            hybrid.setBundleVersion( version );
+            int size = hybrid.getBundleSize( data.length );
+            assertTrue( size == hybrid.encryptWithPublicKey( data ).length );
+
+            // Into the middle of an array, and decrypted from there.
+            byte[] out = new byte[size + 20];
+            assertTrue( hybrid.encryptWithPublicKey( data, 0, data.length, out, 10 ) == size );
+            assertTrue( Arrays.equals( data, hybrid.decryptWithPrivateKey( out, 10, size ) ) );
+
+            // Through direct buffers.
+            ByteBuffer src = ByteBuffer.allocateDirect( data.length );
+            src.put( data ).flip();
+            ByteBuffer dst = ByteBuffer.allocateDirect( size );
+            assertTrue( hybrid.encryptWithPrivateKey( src, dst ) == size );
+            assertFalse( dst.hasRemaining() );
+            dst.flip();
+            assertTrue( Arrays.equals( data, hybrid.decryptWithPublicKey( dst ) ) );
+            assertFalse( dst.hasRemaining() );
+        }
+
+        hybrid.setDataKeyReuse( 10, 60000 );
+        int size = hybrid.getBundleSize( data.length );
+        byte[] out = new byte[size];
+        assertTrue( hybrid.encryptWithPublicKey( data, 0, data.length, out, 0 ) == size );
+        assertTrue( out[3] == HybridCrypto.BUNDLE_V3 );
+        assertTrue( Arrays.equals( data, hybrid.decryptWithPrivateKey( ByteBuffer.wrap( out ) ) ) );
+    }
+
+    @Test( expected = CryptoException.class )
+    public void testBundleOutputTooSmall()
+            throws CryptoException {
+        byte[] data = new byte[100];
+        byte[] out = new byte[hybrid.getBundleSize( data.length ) - 1];
+        hybrid.encryptWithPublicKey( data, 0, data.length, out, 0 );
+    }
+
+    @Test
+    public void testStreams()
+            throws CryptoException, IOException, NoSuchAlgorithmException {
+        String bigStr = ResourceUtil.getResourceAsString( "/testBigText.txt" );
+        // Larger than the stream buffer.
+        byte[] data = ( bigStr + bigStr + bigStr ).getBytes( "UTF-8" );
+
+        int[] versions = { HybridCrypto.BUNDLE_V1, HybridCrypto.BUNDLE_V2 };
+        for ( int version : versions ) {
+            hybrid.setBundleVersion( version );
+            ByteArrayOutputStream encOut = new ByteArrayOutputStream();
+            long written = hybrid.encryptWithPublicKey( new ByteArrayInputStream( data ), encOut );
+            byte[] encData = encOut.toByteArray();
+            assertTrue( written == encData.length );
+            assertTrue( encData.length == hybrid.getBundleSize( data.length ) );
+            // The same bundle as in memory.
+            assertTrue( Arrays.equals( data, hybrid.decryptWithPrivateKey( encData ) ) );
+
+            ByteArrayOutputStream decOut = new ByteArrayOutputStream();
+            written = hybrid.decryptWithPrivateKey( new ByteArrayInputStream( encData ), decOut );
+            assertTrue( written == data.length );
+            assertTrue( Arrays.equals( data, decOut.toByteArray() ) );
+
+            decOut = new ByteArrayOutputStream();
+            hybrid.decryptWithPublicKey( new ByteArrayInputStream( hybrid.encryptWithPrivateKey( data ) ), decOut );
+            assertTrue( Arrays.equals( data, decOut.toByteArray() ) );
+        }
+
+        hybrid.setDataKeyReuse( 10, 60000 );
+        ByteArrayOutputStream decOut = new ByteArrayOutputStream();
+        hybrid.decryptWithPrivateKey( new ByteArrayInputStream( hybrid.encryptWithPublicKey( data ) ), decOut );
+        assertTrue( Arrays.equals( data, decOut.toByteArray() ) );
+
+        KeyPair pair = newKeyPair();
+        AsymmetricCrypto other = new AsymmetricCrypto();
+        other.setPublicKey( pair.getPublic() );
+        byte[] encData = hybrid.encryptForRecipients( data, Arrays.asList( other, asymmetric ) );
+        decOut = new ByteArrayOutputStream();
+        hybrid.decryptWithPrivateKey( new ByteArrayInputStream( encData ), decOut );
+        assertTrue( Arrays.equals( data, decOut.toByteArray() ) );
+    }
+
+    @Test( expected = CryptoException.class )
+    public void testStreamTooShort()
+            throws CryptoException, IOException {
+        byte[] encData = hybrid.encryptWithPublicKey( new byte[100] );
+        ByteArrayInputStream in = new ByteArrayInputStream( Arrays.copyOf( encData, 300 ) );
+        hybrid.decryptWithPrivateKey( in, new ByteArrayOutputStream() );
+    }
+
+    @Test
+    public void testAuthenticated()
+            throws CryptoException, IOException {
+        byte[] data = ResourceUtil.getResourceAsString( "/testBigText.txt" ).getBytes( "UTF-8" );
+        hybrid.setAuthenticated( true );
+
+        // V1 has no header, so V2 is used.
+        byte[] encData = hybrid.encryptWithPublicKey( data );
+        assertTrue( encData[3] == HybridCrypto.BUNDLE_V2 );
+        assertTrue( encData[4] == HybridCrypto.BUNDLE_FLAG_GCM );
+        assertTrue( encData.length == hybrid.getBundleSize( data.length ) );
+        assertTrue( Arrays.equals( data, hybrid.decryptWithPrivateKey( encData ) ) );
+
+        ByteArrayOutputStream decOut = new ByteArrayOutputStream();
+        hybrid.decryptWithPrivateKey( new ByteArrayInputStream( encData ), decOut );
+        assertTrue( Arrays.equals( data, decOut.toByteArray() ) );
+
+        // A modified byte of the data or of the header is detected.
+        assertFalse( decrypts( modified( encData, encData.length - 100 ) ) );
+        assertFalse( decrypts( modified( encData, 4 ) ) );
+
+        hybrid.setDataKeyReuse( 10, 60000 );
+        encData = hybrid.encryptWithPublicKey( data );
+        assertTrue( encData[3] == HybridCrypto.BUNDLE_V3 );
+        assertTrue( encData.length == hybrid.getBundleSize( data.length ) );
+        assertTrue( Arrays.equals( data, hybrid.decryptWithPrivateKey( encData ) ) );
+        decOut = new ByteArrayOutputStream();
+        hybrid.decryptWithPrivateKey( new ByteArrayInputStream( encData ), decOut );
+        assertTrue( Arrays.equals( data, decOut.toByteArray() ) );
+
+        encData = hybrid.encryptForRecipients( data, Arrays.asList( asymmetric ) );
+        assertTrue( encData[4] == HybridCrypto.BUNDLE_FLAG_GCM );
+        assertTrue( Arrays.equals( data, hybrid.decryptWithPrivateKey( encData ) ) );
+
+        // Authenticated bundles are read whatever the setting.
+        hybrid.setAuthenticated( false );
+        assertTrue( Arrays.equals( data, hybrid.decryptWithPrivateKey( encData ) ) );
+    }
+
+    @Test
+    public void testTamperedNotRetriedAsV1()
+            throws CryptoException {
+        // 5 + 256 + 251 + 16 = 256 + 256 + 16: the length of a V1 bundle as well.
+        byte[] data = new byte[251];
+        hybrid.setAuthenticated( true );
+        byte[] encData = hybrid.encryptWithPublicKey( data );
+        assertTrue( encData.length == 2 * 256 + 16 );
+        try {
+            hybrid.decryptWithPrivateKey( modified( encData, encData.length - 1 ) );
+            fail( "Decrypted a modified bundle." );
+        } catch ( CryptoException e ) {
+            assertTrue( e.getCause() instanceof AEADBadTagException );
+        }
+    }
+
+    @Test
+    public void testBatch()
+            throws CryptoException, UnsupportedEncodingException {
+        List<byte[]> data = new ArrayList<byte[]>();
+        for ( int i = 0; i < 50; i++ ) {
+            data.add( ( "message " + i ).getBytes( "UTF-8" ) );
+        }
+
+        ExecutorService exec = Executors.newFixedThreadPool( 4 );
+        try {
+            hybrid.setExecutor( exec );
+            List<BatchResult> encResults = hybrid.encryptAllWithPublicKey( data );
+            assertTrue( encResults.size() == data.size() );
+
+            List<byte[]> encBundles = new ArrayList<byte[]>();
+            for ( BatchResult result : encResults ) {
+                assertTrue( result.isSuccess() );
+                encBundles.add( result.getData() );
+            }
+            // A broken bundle only fails its own item.
+            encBundles.set( 7, new byte[10] );
+
+            List<BatchResult> results = hybrid.decryptAllWithPrivateKey( encBundles );
+            assertTrue( results.size() == data.size() );
+            for ( int i = 0; i < data.size(); i++ ) {
+                if ( i == 7 ) {
+                    assertFalse( results.get( i ).isSuccess() );
+                    assertTrue( results.get( i ).getException() != null );
+                } else {
+                    assertTrue( Arrays.equals( data.get( i ), results.get( i ).getData() ) );
+                }
+            }
+        } finally {
+            exec.shutdown();
+        }
+
+        hybrid.setExecutor( null );
+        assertTrue( hybrid.decryptAllWithPublicKey( new ArrayList<byte[]>() ).isEmpty() );
+    }
+
+    @Test
+    public void testBatchParallelism() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        ForkJoinPool pool = new ForkJoinPool( 3 );
+        ExecutorService fixed = Executors.newFixedThreadPool( 2 );
+        ExecutorService cached = Executors.newCachedThreadPool();
+        ExecutorService single = Executors.newSingleThreadExecutor();
+        try {
+            assertTrue( HybridCrypto.getParallelism( pool ) == 3 );
+            assertTrue( HybridCrypto.getParallelism( fixed ) == 2 );
+            assertTrue( HybridCrypto.getParallelism( cached ) == processors );
+            // Not a ThreadPoolExecutor itself.
+            assertTrue( HybridCrypto.getParallelism( single ) == processors );
+        } finally {
+            pool.shutdown();
+            fixed.shutdown();
+            cached.shutdown();
+            single.shutdown();
+        }
+    }
+
     @Test
     public void testHybridEncrypt()
             throws UnsupportedEncodingException, CryptoException {
@@ -135,4 +641,30 @@ public class HybridCryptoTest {
         assertTrue( resStr.equals( new String( data2, "UTF-8" ) ) );
 
     }
+
+    private boolean decrypts( byte[] encBundle ) {
+        try {
+            hybrid.decryptWithPrivateKey( encBundle );
+            return true;
+        } catch ( CryptoException e ) {
+            return false;
+        }
+    }
+
+    private static byte[] modified( byte[] encBundle, int index ) {
+        byte[] modified = encBundle.clone();
+        modified[index] ^= 1;
+        return modified;
+    }
+
+    private static KeyPair newKeyPair()
+            throws NoSuchAlgorithmException {
+        KeyPairGenerator gen = KeyPairGenerator.getInstance( "RSA" );
+        gen.initialize( 2048 );
+        return gen.generateKeyPair();
+    }
+
+    private static byte[] encryptedKey( byte[] encBundle ) {
+        return Arrays.copyOfRange( encBundle, HybridCrypto.BUNDLE_HEADER_BYTES, HybridCrypto.BUNDLE_HEADER_BYTES + 256 );
+    }
 }
@@ -0,0 +1,198 @@
+package org.cujau.crypto;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class KeyRegistryTest {
+
+    private KeyPair keyPair;
+    private AtomicInteger loads;
+
+    @Before
+    public void before()
+            throws Exception {
+        KeyPairGenerator gen = KeyPairGenerator.getInstance( "RSA" );
+        gen.initialize( 1024 );
+        keyPair = gen.generateKeyPair();
+        loads = new AtomicInteger();
+    }
+
+    private KeyRegistry.Loader loader( final CountDownLatch release ) {
+        return new KeyRegistry.Loader() {
+            @Override
+            public AsymmetricCrypto load( String tenantId )
+                    throws CryptoException {
+                loads.incrementAndGet();
+                if ( tenantId.startsWith( "bad" ) ) {
+                    throw new CryptoException( "No keys for " + tenantId );
+                }
+                try {
+                    release.await();
+                } catch ( InterruptedException e ) {
+                    throw new CryptoException( e );
+                }
+                AsymmetricCrypto cry = new AsymmetricCrypto();
+                cry.setPublicKey( keyPair.getPublic() );
+                cry.setPrivateKey( keyPair.getPrivate() );
+                return cry;
+            }
+        };
+    }
+
+    @Test
+    public void testLazyLoad()
+            throws CryptoException {
+        KeyRegistry registry = new KeyRegistry( loader( new CountDownLatch( 0 ) ), Long.MAX_VALUE );
+        AsymmetricCrypto cry = registry.get( "a" );
+        assertTrue( registry.get( "a" ) == cry );
+        assertTrue( loads.get() == 1 );
+        assertTrue( registry.getHits() == 1 && registry.getMisses() == 1 && registry.getLoads() == 1 );
+        assertTrue( registry.getWeight() > 0 );
+
+        registry.invalidate( "a" );
+        assertTrue( registry.size() == 0 && registry.getWeight() == 0 );
+        assertTrue( registry.get( "a" ) != cry );
+        assertTrue( loads.get() == 2 );
+    }
+
+    @Test
+    public void testSingleLoadForConcurrentMisses()
+            throws Exception {
+        CountDownLatch release = new CountDownLatch( 1 );
+        final KeyRegistry registry = new KeyRegistry( loader( release ), Long.MAX_VALUE );
+        ExecutorService exec = Executors.newFixedThreadPool( 8 );
+        try {
+            List<Future<AsymmetricCrypto>> results = new ArrayList<Future<AsymmetricCrypto>>();
+            for ( int i = 0; i < 8; i++ ) {
+                results.add( exec.submit( new Callable<AsymmetricCrypto>() {
+                    @Override
+                    public AsymmetricCrypto call()
+                            throws CryptoException {
+                        return registry.get( "a" );
+                    }
+                } ) );
+            }
+            // Give the threads time to pile up behind the first load.
+            Thread.sleep( 200 );
+            release.countDown();
+            AsymmetricCrypto first = results.get( 0 ).get();
+            for ( Future<AsymmetricCrypto> result : results ) {
+                assertTrue( result.get() == first );
+            }
+            assertTrue( loads.get() == 1 );
+        } finally {
+            exec.shutdown();
+        }
+    }
+
+    @Test
+    public void testInvalidateDuringLoad()
+            throws Exception {
+        CountDownLatch release = new CountDownLatch( 1 );
+        final KeyRegistry registry = new KeyRegistry( loader( release ), Long.MAX_VALUE );
+        ExecutorService exec = Executors.newSingleThreadExecutor();
+        try {
+            Future<AsymmetricCrypto> stale = exec.submit( new Callable<AsymmetricCrypto>() {
+                @Override
+                public AsymmetricCrypto call()
+                        throws CryptoException {
+                    return registry.get( "a" );
+                }
+            } );
+            // Let the load start, then rotate the keys under it.
+            while ( loads.get() == 0 ) {
+                Thread.sleep( 10 );
+            }
+            registry.invalidate( "a" );
+            release.countDown();
+            AsymmetricCrypto old = stale.get();
+            assertTrue( registry.size() == 0 && registry.getWeight() == 0 );
+
+            AsymmetricCrypto fresh = registry.get( "a" );
+            assertTrue( fresh != old );
+            assertTrue( loads.get() == 2 && registry.size() == 1 );
+        } finally {
+            exec.shutdown();
+        }
+    }
+
+    @Test
+    public void testWeighsCipherPools()
+            throws CryptoException {
+        KeyRegistry registry = new KeyRegistry( loader( new CountDownLatch( 0 ) ), Long.MAX_VALUE );
+        AsymmetricCrypto cry = registry.get( "a" );
+        assertTrue( cry.getMaxIdleCiphers() == KeyRegistry.MAX_IDLE_CIPHERS );
+        long keys = keyPair.getPublic().getEncoded().length + keyPair.getPrivate().getEncoded().length;
+        assertTrue( registry.getWeight() == keys + 4 * KeyRegistry.MAX_IDLE_CIPHERS * cry.getKeySizeBytes() );
+    }
+
+    @Test
+    public void testSharedLoadedInstanceNotChanged()
+            throws CryptoException {
+        final AsymmetricCrypto shared = new AsymmetricCrypto();
+        shared.setPublicKey( keyPair.getPublic() );
+        shared.setPrivateKey( keyPair.getPrivate() );
+        KeyRegistry registry = new KeyRegistry( new KeyRegistry.Loader() {
+            @Override
+            public AsymmetricCrypto load( String tenantId ) {
+                return shared;
+            }
+        }, Long.MAX_VALUE );
+        AsymmetricCrypto cry = registry.get( "a" );
+        assertTrue( cry != shared && cry.getPrivateKey() == shared.getPrivateKey() );
+        assertTrue( shared.getMaxIdleCiphers() == AsymmetricCrypto.DEFAULT_MAX_IDLE_CIPHERS );
+    }
+
+    @Test
+    public void testWeightEviction()
+            throws CryptoException {
+        KeyRegistry bounded = new KeyRegistry( loader( new CountDownLatch( 0 ) ), 30 ) {
+            @Override
+            protected long weigh( AsymmetricCrypto cry ) {
+                return 10;
+            }
+        };
+        bounded.get( "a" );
+        bounded.get( "b" );
+        bounded.get( "c" );
+        // Touch a, so b is the least recently used.
+        bounded.get( "a" );
+        bounded.get( "d" );
+        assertTrue( bounded.size() == 3 && bounded.getWeight() == 30 );
+        assertTrue( bounded.getEvictions() == 1 );
+        int before = loads.get();
+        bounded.get( "a" );
+        assertTrue( loads.get() == before );
+        bounded.get( "b" );
+        assertTrue( loads.get() == before + 1 );
+    }
+
+    @Test
+    public void testLoadFailure()
+            throws CryptoException {
+        KeyRegistry registry = new KeyRegistry( loader( new CountDownLatch( 0 ) ), Long.MAX_VALUE );
+        for ( int i = 0; i < 2; i++ ) {
+            try {
+                registry.get( "bad" );
+                fail( "Expected a load failure." );
+            } catch ( CryptoException e ) {
+                // Expected, and not cached.
+            }
+        }
+        assertTrue( registry.getLoadFailures() == 2 && registry.size() == 0 );
+    }
+}
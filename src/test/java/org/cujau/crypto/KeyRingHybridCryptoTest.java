@@ -0,0 +1,124 @@
+package org.cujau.crypto;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class KeyRingHybridCryptoTest {
+
+    private static final byte[] DATA = "The quick brown fox jumps over the lazy dog".getBytes();
+
+    private AtomicInteger unwraps;
+    private AsymmetricCrypto oldKey;
+    private AsymmetricCrypto newKey;
+    private KeyRing ring;
+
+    @Before
+    public void before()
+            throws Exception {
+        unwraps = new AtomicInteger();
+        oldKey = newKey();
+        newKey = newKey();
+        ring = new KeyRing();
+        ring.setPrimary( oldKey );
+    }
+
+    @Test
+    public void testRotation()
+            throws CryptoException {
+        KeyRingHybridCrypto hybrid = new KeyRingHybridCrypto( ring );
+        byte[] oldBundle = hybrid.encryptWithPublicKey( DATA );
+        assertTrue( ( oldBundle[4] & HybridCrypto.BUNDLE_FLAG_KEY_ID ) != 0 );
+
+        // Rotate: new bundles use the new key, old bundles still decrypt.
+        ring.setPrimary( newKey );
+        byte[] newBundle = hybrid.encryptWithPublicKey( DATA );
+        assertTrue( ring.size() == 2 );
+
+        unwraps.set( 0 );
+        assertArrayEquals( DATA, hybrid.decryptWithPrivateKey( oldBundle ) );
+        assertArrayEquals( DATA, hybrid.decryptWithPrivateKey( newBundle ) );
+        // One asymmetric operation per bundle, whichever the key.
+        assertTrue( unwraps.get() == 2 );
+
+        ring.remove( oldKey.getKeyId() );
+        unwraps.set( 0 );
+        try {
+            hybrid.decryptWithPrivateKey( oldBundle );
+            fail( "Decrypted with a removed key." );
+        } catch ( CryptoException e ) {
+            assertTrue( unwraps.get() == 0 );
+        }
+    }
+
+    @Test
+    public void testAuthenticated()
+            throws CryptoException {
+        KeyRingHybridCrypto hybrid = new KeyRingHybridCrypto( ring );
+        hybrid.setAuthenticated( true );
+        byte[] bundle = hybrid.encryptWithPublicKey( DATA );
+        assertTrue( bundle[4] == ( HybridCrypto.BUNDLE_FLAG_GCM | HybridCrypto.BUNDLE_FLAG_KEY_ID ) );
+        ring.setPrimary( newKey );
+        assertArrayEquals( DATA, hybrid.decryptWithPrivateKey( bundle ) );
+    }
+
+    @Test
+    public void testRecipients()
+            throws CryptoException {
+        ring.add( newKey );
+        byte[] bundle = new HybridCrypto( oldKey ).encryptForRecipients( DATA, Arrays.asList( newKey ) );
+        unwraps.set( 0 );
+        assertArrayEquals( DATA, new KeyRingHybridCrypto( ring ).decryptWithPrivateKey( bundle ) );
+        assertTrue( unwraps.get() == 1 );
+    }
+
+    @Test
+    public void testBundleWithoutKeyId()
+            throws CryptoException {
+        ring.add( newKey );
+        byte[] bundle = new HybridCrypto( newKey ).encryptWithPublicKey( DATA );
+        assertTrue( HybridCrypto.getKeyIds( bundle, 0, bundle.length ).isEmpty() );
+        // Tried with every key in turn.
+        assertArrayEquals( DATA, new KeyRingHybridCrypto( ring ).decryptWithPrivateKey( bundle ) );
+    }
+
+    @Test( expected = CryptoException.class )
+    public void testNoPrimary()
+            throws CryptoException {
+        new KeyRingHybridCrypto( new KeyRing() ).encryptWithPublicKey( DATA );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testRemovePrimary() {
+        ring.remove( oldKey.getKeyId() );
+    }
+
+    /**
+     * A key that counts its private key decryptions.
+     */
+    private AsymmetricCrypto newKey()
+            throws Exception {
+        KeyPairGenerator gen = KeyPairGenerator.getInstance( "RSA" );
+        gen.initialize( 2048 );
+        KeyPair pair = gen.generateKeyPair();
+        AsymmetricCrypto cry = new AsymmetricCrypto() {
+            @Override
+            public byte[] decryptWithPrivateKey( byte[] data )
+                    throws CryptoException {
+                unwraps.incrementAndGet();
+                return super.decryptWithPrivateKey( data );
+            }
+        };
+        cry.setPublicKey( pair.getPublic() );
+        cry.setPrivateKey( pair.getPrivate() );
+        return cry;
+    }
+}
@@ -0,0 +1,167 @@
+package org.cujau.crypto;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.KeyStore;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class KeyStoreIndexTest {
+
+    private static final String KEYSTORE_RESOURCE = "/cujauKeyStore.jks";
+    private static final String CERTSTORE_RESOURCE = "/cujauCertStore.jks";
+    private static final String PASSWORD = "changeit";
+    private static final String ALIAS = "cujau";
+
+    private Path dir;
+    private Path file;
+
+    @Before
+    public void before()
+            throws IOException {
+        dir = Files.createTempDirectory( "keystoreindex" );
+        file = dir.resolve( "keys.jks" );
+        copy( KEYSTORE_RESOURCE, file );
+    }
+
+    @After
+    public void after()
+            throws IOException {
+        Files.deleteIfExists( file );
+        Files.delete( dir );
+    }
+
+    @Test
+    public void testLookup()
+            throws Exception {
+        KeyStoreIndex index = new KeyStoreIndex( file, PASSWORD, PASSWORD );
+        assertTrue( index.getAliases().contains( ALIAS ) );
+        assertNotNull( index.getPublicKey( ALIAS ) );
+        assertNotNull( index.getPrivateKey( ALIAS ) );
+        assertNull( index.getPublicKey( "nobody" ) );
+
+        AsymmetricCrypto cry = index.getAsymmetricCrypto( ALIAS );
+        // Shared, so its cipher pools are reused.
+        assertTrue( index.getAsymmetricCrypto( ALIAS ) == cry );
+        byte[] data = "hello".getBytes( "UTF-8" );
+        assertArrayEquals( data, cry.decryptWithPrivateKey( cry.encryptWithPublicKey( data ) ) );
+
+        // Without the key password, only the public keys.
+        assertNull( new KeyStoreIndex( file, PASSWORD, null ).getPrivateKey( ALIAS ) );
+    }
+
+    @Test
+    public void testSecretKeyAndOtherPasswordEntries()
+            throws Exception {
+        // A PKCS12 store with the RSA entry, a secret key entry and an entry with another password.
+        KeyStore source = KeyStore.getInstance( "jks" );
+        InputStream in = getClass().getResourceAsStream( KEYSTORE_RESOURCE );
+        try {
+            source.load( in, PASSWORD.toCharArray() );
+        } finally {
+            in.close();
+        }
+        KeyStore.PasswordProtection protection = new KeyStore.PasswordProtection( PASSWORD.toCharArray() );
+        KeyStore.Entry rsa = source.getEntry( ALIAS, protection );
+
+        KeyStore store = KeyStore.getInstance( "pkcs12" );
+        store.load( null, null );
+        store.setEntry( ALIAS, rsa, protection );
+        store.setEntry( "other", rsa, new KeyStore.PasswordProtection( "other".toCharArray() ) );
+        store.setEntry( "secret", new KeyStore.SecretKeyEntry( new SymmetricCrypto().getRandomKey() ), protection );
+        Path p12 = dir.resolve( "keys.p12" );
+        OutputStream out = Files.newOutputStream( p12 );
+        try {
+            store.store( out, PASSWORD.toCharArray() );
+        } finally {
+            out.close();
+        }
+
+        try {
+            KeyStoreIndex index = new KeyStoreIndex( p12, "pkcs12", PASSWORD, PASSWORD );
+            assertNotNull( index.getPrivateKey( ALIAS ) );
+            assertNull( index.getPrivateKey( "other" ) );
+            assertNotNull( index.getPublicKey( "other" ) );
+            assertNull( index.getPrivateKey( "secret" ) );
+        } finally {
+            Files.delete( p12 );
+        }
+    }
+
+    @Test( expected = CryptoException.class )
+    public void testWrongPassword()
+            throws CryptoException {
+        new KeyStoreIndex( file, "wrong", PASSWORD );
+    }
+
+    @Test( expected = CryptoException.class )
+    public void testUnknownAlias()
+            throws CryptoException {
+        new KeyStoreIndex( file, PASSWORD, PASSWORD ).getAsymmetricCrypto( "nobody" );
+    }
+
+    @Test
+    public void testReload()
+            throws Exception {
+        KeyStoreIndex index = new KeyStoreIndex( file, PASSWORD, PASSWORD );
+
+        // A broken file keeps the previous keys.
+        Files.write( file, new byte[] { 1, 2, 3 } );
+        try {
+            index.reload();
+            fail( "A broken keystore must not load." );
+        } catch ( CryptoException e ) {
+            // Expected.
+        }
+        assertNotNull( index.getPrivateKey( ALIAS ) );
+
+        // The cert store has the same alias, without the private key.
+        copy( CERTSTORE_RESOURCE, file );
+        index.reload();
+        assertTrue( index.getReloads() == 1 );
+        assertNotNull( index.getPublicKey( ALIAS ) );
+        assertNull( index.getPrivateKey( ALIAS ) );
+    }
+
+    @Test
+    public void testWatch()
+            throws Exception {
+        KeyStoreIndex index = new KeyStoreIndex( file, PASSWORD, PASSWORD );
+        index.startWatching();
+        try {
+            copy( CERTSTORE_RESOURCE, file );
+            long deadline = System.currentTimeMillis() + 30000;
+            while ( index.getPrivateKey( ALIAS ) != null && System.currentTimeMillis() < deadline ) {
+                Thread.sleep( 50 );
+            }
+            assertNull( index.getPrivateKey( ALIAS ) );
+            assertNotNull( index.getPublicKey( ALIAS ) );
+        } finally {
+            index.close();
+        }
+    }
+
+    private void copy( String resource, Path target )
+            throws IOException {
+        InputStream in = getClass().getResourceAsStream( resource );
+        try {
+            Path tmp = Files.createTempFile( dir, "copy", ".tmp" );
+            Files.copy( in, tmp, StandardCopyOption.REPLACE_EXISTING );
+            Files.move( tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+        } finally {
+            in.close();
+        }
+    }
+}
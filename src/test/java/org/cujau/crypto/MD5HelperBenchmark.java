@@ -0,0 +1,128 @@
+package org.cujau.crypto;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Simple latency benchmarks for {@link MD5Helper}. This is not a unit test, run the <tt>main</tt>
+ * method with the test classpath, e.g.
+ * 
+ * <pre>
+ * java -cp target/classes:target/test-classes:... org.cujau.crypto.MD5HelperBenchmark
+ * </pre>
+ */
+public class MD5HelperBenchmark {
+
+    private static final int KEY_COUNT = 1000;
+    private static final int WARMUP_ROUNDS = 500;
+    private static final int ROUNDS = 2000;
+
+    private final List<byte[]> keys;
+    private final StringBuilder sb = new StringBuilder();
+
+    public MD5HelperBenchmark() {
+        keys = new ArrayList<byte[]>( KEY_COUNT );
+        for ( int i = 0; i < KEY_COUNT; i++ ) {
+            keys.add( ( "cache:user:" + i + ":profile" ).getBytes( StandardCharsets.UTF_8 ) );
+        }
+    }
+
+    private abstract static class Op {
+
+        private final String name;
+
+        Op( String name ) {
+            this.name = name;
+        }
+
+        abstract long run()
+                throws Exception;
+    }
+
+    private Op[] ops() {
+        return new Op[] {
+            // A new digest per call and Integer.toHexString per byte, as toMD5String() used to do.
+            new Op( "newDigestPerCall" ) {
+                long run()
+                        throws Exception {
+                    long sink = 0;
+                    for ( byte[] key : keys ) {
+                        sink += legacyMD5String( key ).length();
+                    }
+                    return sink;
+                }
+            },
+            // The per thread digest and the hex table.
+            new Op( "toMD5String" ) {
+                long run()
+                        throws Exception {
+                    long sink = 0;
+                    for ( byte[] key : keys ) {
+                        sink += MD5Helper.toMD5String( key ).length();
+                    }
+                    return sink;
+                }
+            },
+            // Append into a reused StringBuilder, no String per key.
+            new Op( "appendMD5String" ) {
+                long run()
+                        throws Exception {
+                    long sink = 0;
+                    for ( byte[] key : keys ) {
+                        sb.setLength( 0 );
+                        MD5Helper.appendMD5String( key, sb );
+                        sink += sb.length();
+                    }
+                    return sink;
+                }
+            },
+            // The batch API.
+            new Op( "toMD5Strings" ) {
+                long run()
+                        throws Exception {
+                    return MD5Helper.toMD5Strings( keys ).size();
+                }
+            } };
+    }
+
+    private static String legacyMD5String( byte[] valBytes )
+            throws Exception {
+        MessageDigest algorithm = MessageDigest.getInstance( "MD5" );
+        algorithm.reset();
+        algorithm.update( valBytes );
+        byte[] md = algorithm.digest();
+        StringBuilder hexString = new StringBuilder();
+        for ( int i = 0; i < md.length; i++ ) {
+            String hex = Integer.toHexString( 0xFF & md[i] );
+            if ( hex.length() == 1 ) {
+                hexString.append( '0' );
+            }
+            hexString.append( hex );
+        }
+        return hexString.toString();
+    }
+
+    private static void measure( Op op )
+            throws Exception {
+        long sink = 0;
+        for ( int i = 0; i < WARMUP_ROUNDS; i++ ) {
+            sink += op.run();
+        }
+        long start = System.nanoTime();
+        for ( int i = 0; i < ROUNDS; i++ ) {
+            sink += op.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf( "%-24s %8.0f ns/key  (sink %d)%n", op.name, (double) elapsed / ROUNDS / KEY_COUNT, sink );
+    }
+
+    public static void main( String[] args )
+            throws Exception {
+        MD5HelperBenchmark benchmark = new MD5HelperBenchmark();
+        for ( Op op : benchmark.ops() ) {
+            measure( op );
+        }
+    }
+}
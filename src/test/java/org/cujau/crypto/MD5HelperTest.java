@@ -0,0 +1,108 @@
+package org.cujau.crypto;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class MD5HelperTest {
+
+    private static final byte[] VALUE = "The quick brown fox jumps over the lazy dog".getBytes( StandardCharsets.UTF_8 );
+    private static final String VALUE_MD5 = "9e107d9d372bb6826bd81d3542a419d6";
+
+    @Test
+    public void testMD5String()
+            throws NoSuchAlgorithmException {
+        assertTrue( MD5Helper.toMD5String( VALUE ).equals( VALUE_MD5 ) );
+        assertTrue( MD5Helper.toMD5String( new byte[0] ).equals( "d41d8cd98f00b204e9800998ecf8427e" ) );
+        // The thread's digest is reused, and must not carry state over.
+        assertTrue( MD5Helper.toMD5String( VALUE ).equals( VALUE_MD5 ) );
+    }
+
+    @Test
+    public void testMD5Salted()
+            throws NoSuchAlgorithmException {
+        byte[] salt = { 1, 2, 3 };
+        byte[] joined = new byte[salt.length + VALUE.length];
+        System.arraycopy( salt, 0, joined, 0, salt.length );
+        System.arraycopy( VALUE, 0, joined, salt.length, VALUE.length );
+        assertTrue( MD5Helper.toMD5String( VALUE, salt ).equals( MD5Helper.toMD5String( joined ) ) );
+    }
+
+    @Test
+    public void testMD5BytesInPlace()
+            throws NoSuchAlgorithmException {
+        byte[] out = new byte[MD5Helper.MD5_BYTES + 3];
+        assertTrue( MD5Helper.toMD5Bytes( VALUE, out, 3 ) == MD5Helper.MD5_BYTES );
+        assertArrayEquals( MD5Helper.toMD5Bytes( VALUE ), Arrays.copyOfRange( out, 3, out.length ) );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testMD5BytesOutputTooSmall()
+            throws NoSuchAlgorithmException {
+        MD5Helper.toMD5Bytes( VALUE, new byte[MD5Helper.MD5_BYTES], 1 );
+    }
+
+    @Test
+    public void testHex()
+            throws IOException, NoSuchAlgorithmException {
+        byte[] bytes = { 0, 1, (byte) 0x7F, (byte) 0x80, (byte) 0xFF };
+        char[] out = new char[12];
+        assertTrue( MD5Helper.toHex( bytes, out, 2 ) == 10 );
+        assertTrue( new String( out, 2, 10 ).equals( "00017f80ff" ) );
+
+        StringBuilder sb = new StringBuilder( "md5:" );
+        MD5Helper.appendMD5String( VALUE, sb );
+        assertTrue( sb.toString().equals( "md5:" + VALUE_MD5 ) );
+    }
+
+    @Test
+    public void testBatch()
+            throws NoSuchAlgorithmException {
+        List<byte[]> values = Arrays.asList( VALUE, new byte[0], VALUE );
+        List<String> strings = MD5Helper.toMD5Strings( values );
+        List<byte[]> bytes = MD5Helper.toMD5Bytes( values );
+        assertTrue( strings.size() == 3 && bytes.size() == 3 );
+        for ( int i = 0; i < values.size(); i++ ) {
+            assertTrue( strings.get( i ).equals( MD5Helper.toMD5String( values.get( i ) ) ) );
+            assertArrayEquals( bytes.get( i ), MD5Helper.toMD5Bytes( values.get( i ) ) );
+        }
+    }
+
+    @Test
+    public void testStreamsAndFiles()
+            throws IOException, NoSuchAlgorithmException {
+        // Larger than the stream buffer, and not a multiple of it or the map window.
+        byte[] data = new byte[3 * MD5Helper.STREAM_BUFFER_BYTES + 5];
+        for ( int i = 0; i < data.length; i++ ) {
+            data[i] = (byte) i;
+        }
+        byte[] expected = MD5Helper.toMD5Bytes( data );
+
+        assertArrayEquals( expected, MD5Helper.toMD5Bytes( new ByteArrayInputStream( data ) ) );
+        assertArrayEquals( expected,
+                           MD5Helper.toMD5Bytes( Channels.newChannel( new ByteArrayInputStream( data ) ) ) );
+
+        Path file = Files.createTempFile( "md5", ".bin" );
+        try {
+            Files.write( file, data );
+            assertArrayEquals( expected, MD5Helper.toMD5Bytes( file ) );
+            assertArrayEquals( expected, MD5Helper.toMD5Bytes( file, 1000 ) );
+
+            Files.write( file, new byte[0] );
+            assertArrayEquals( MD5Helper.toMD5Bytes( new byte[0] ), MD5Helper.toMD5Bytes( file ) );
+        } finally {
+            Files.delete( file );
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package org.cujau.crypto;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class RandomReservoirTest {
+
+    private SecureRandomPool pool;
+    private List<Runnable> tasks;
+    // Runs the refill tasks only when asked to.
+    private Executor manual;
+
+    @Before
+    public void before()
+            throws CryptoException {
+        pool = new SecureRandomPool( SecureRandomPool.DEFAULT_ALGORITHM, 1 );
+        tasks = new ArrayList<Runnable>();
+        manual = new Executor() {
+            @Override
+            public void execute( Runnable command ) {
+                tasks.add( command );
+            }
+        };
+    }
+
+    @Test
+    public void testServeAndRefill() {
+        RandomReservoir reservoir = new RandomReservoir( pool, 8, 4, manual );
+        assertTrue( tasks.size() == 1 );
+        assertTrue( reservoir.getDepth() == 0 );
+        runTasks();
+        assertTrue( reservoir.getDepth() == 8 );
+        assertTrue( reservoir.getRefills() == 1 );
+
+        Set<String> seen = new HashSet<String>();
+        for ( int i = 0; i < 4; i++ ) {
+            byte[] bytes = new byte[16];
+            reservoir.nextBytes( bytes );
+            assertTrue( seen.add( Arrays.toString( bytes ) ) );
+        }
+        assertTrue( reservoir.getServed() == 4 );
+        assertTrue( reservoir.getDepth() == 4 );
+        assertTrue( tasks.isEmpty() );
+        // Below the threshold: a single refill is started.
+        reservoir.nextBytes( new byte[12] );
+        assertTrue( tasks.size() == 1 );
+        reservoir.nextBytes( new byte[16] );
+        assertTrue( tasks.size() == 1 );
+        runTasks();
+        assertTrue( reservoir.getDepth() == 8 );
+        assertTrue( reservoir.getStalls() == 0 );
+    }
+
+    @Test
+    public void testStall() {
+        RandomReservoir reservoir = new RandomReservoir( pool, 4, 2, manual );
+        byte[] bytes = new byte[16];
+        reservoir.nextBytes( bytes );
+        assertFalse( Arrays.equals( new byte[16], bytes ) );
+        assertTrue( reservoir.getStalls() == 1 );
+        assertTrue( reservoir.getServed() == 0 );
+
+        // Larger requests bypass the reservoir.
+        runTasks();
+        reservoir.nextBytes( new byte[32] );
+        assertTrue( reservoir.getDepth() == 4 );
+        assertTrue( reservoir.getStalls() == 1 );
+    }
+
+    @Test
+    public void testSymmetricCrypto()
+            throws CryptoException {
+        SymmetricCrypto cry = new SymmetricCrypto( pool );
+        RandomReservoir reservoir = new RandomReservoir( pool, 64, 16, manual );
+        runTasks();
+        cry.setRandomReservoir( reservoir );
+        cry.getRandomIV();
+        cry.getRandomKey();
+        cry.getRandomSalt();
+        cry.getRandomGcmParameters( SymmetricCrypto.GCM_TAG_BITS );
+        assertTrue( reservoir.getServed() == 4 );
+        assertTrue( reservoir.getDepth() == 60 );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testInvalidThreshold() {
+        new RandomReservoir( pool, 4, 5, manual );
+    }
+
+    private void runTasks() {
+        List<Runnable> run = new ArrayList<Runnable>( tasks );
+        tasks.clear();
+        for ( Runnable task : run ) {
+            task.run();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package org.cujau.crypto;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Contention benchmark for {@link SecureRandomPool}: the throughput of drawing IV sized random
+ * blocks from a single shared instance and from a striped pool, for a growing number of threads.
+ * This is not a unit test, run the <tt>main</tt> method with the test classpath, e.g.
+ * 
+ * <pre>
+ * java -cp target/classes:target/test-classes:... org.cujau.crypto.SecureRandomPoolBenchmark [algorithm]
+ * </pre>
+ */
+public class SecureRandomPoolBenchmark {
+
+    private static final int[] THREAD_COUNTS = { 1, 2, 4, 8, 16, 32, 64 };
+    private static final int CALLS = 2000000;
+    private static final int BLOCK_SIZE = 16;
+
+    private static double measure( final SecureRandomPool pool, int threads )
+            throws InterruptedException {
+        final int callsPerThread = CALLS / threads;
+        final CountDownLatch start = new CountDownLatch( 1 );
+        final CountDownLatch done = new CountDownLatch( threads );
+        for ( int t = 0; t < threads; t++ ) {
+            new Thread( new Runnable() {
+                @Override
+                public void run() {
+                    byte[] block = new byte[BLOCK_SIZE];
+                    try {
+                        start.await();
+                    } catch ( InterruptedException e ) {
+                        return;
+                    }
+                    for ( int i = 0; i < callsPerThread; i++ ) {
+                        pool.nextBytes( block );
+                    }
+                    done.countDown();
+                }
+            } ).start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        return (double) callsPerThread * threads / elapsed * 1e9;
+    }
+
+    public static void main( String[] args )
+            throws Exception {
+        String algorithm = args.length > 0 ? args[0] : SecureRandomPool.DEFAULT_ALGORITHM;
+        SecureRandomPool single = new SecureRandomPool( algorithm, 1 );
+        SecureRandomPool striped = new SecureRandomPool( algorithm );
+        // Warm up, and seed the stripes.
+        measure( single, 4 );
+        measure( striped, THREAD_COUNTS[THREAD_COUNTS.length - 1] );
+
+        System.out.printf( "%s, %d processors, %d stripes%n", algorithm, Runtime.getRuntime().availableProcessors(),
+                           striped.getStripeCount() );
+        System.out.printf( "%8s %16s %16s%n", "threads", "single ops/s", "striped ops/s" );
+        for ( int threads : THREAD_COUNTS ) {
+            System.out.printf( "%8d %16.0f %16.0f%n", threads, measure( single, threads ), measure( striped, threads ) );
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package org.cujau.crypto;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+import org.junit.Test;
+
+public class SecureRandomPoolTest {
+
+    @Test
+    public void testNextBytes()
+            throws CryptoException {
+        SecureRandomPool pool = new SecureRandomPool( SecureRandomPool.DEFAULT_ALGORITHM, 4 );
+        assertTrue( pool.getStripeCount() == 4 );
+
+        byte[] a = new byte[16];
+        byte[] b = new byte[16];
+        pool.nextBytes( a );
+        pool.nextBytes( b );
+        assertFalse( Arrays.equals( a, b ) );
+
+        // A thread keeps its stripe.
+        SecureRandom stripe = pool.getStripe();
+        assertTrue( stripe == pool.getStripe() );
+    }
+
+    @Test
+    public void testConcurrent()
+            throws Exception {
+        final SecureRandomPool pool = new SecureRandomPool( SecureRandomPool.DEFAULT_ALGORITHM, 3 );
+        ExecutorService exec = Executors.newFixedThreadPool( 8 );
+        try {
+            List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>();
+            for ( int i = 0; i < 64; i++ ) {
+                futures.add( exec.submit( new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() {
+                        byte[] bytes = new byte[32];
+                        pool.nextBytes( bytes );
+                        return bytes;
+                    }
+                } ) );
+            }
+            List<String> seen = new ArrayList<String>();
+            for ( Future<byte[]> future : futures ) {
+                String bytes = Arrays.toString( future.get() );
+                assertFalse( seen.contains( bytes ) );
+                seen.add( bytes );
+            }
+        } finally {
+            exec.shutdown();
+        }
+    }
+
+    @Test
+    public void testSymmetricCrypto()
+            throws CryptoException {
+        SymmetricCrypto cry = new SymmetricCrypto( new SecureRandomPool( SecureRandomPool.DEFAULT_ALGORITHM, 2 ) );
+        SecretKey key = cry.getRandomKey();
+        assertTrue( key.getEncoded().length == 16 );
+        assertTrue( key.getAlgorithm().equals( "AES" ) );
+
+        IvParameterSpec iv = cry.getRandomIV();
+        byte[] data = "abcdefghijklmnopqrstuvwxyz".getBytes();
+        assertTrue( Arrays.equals( data, cry.decrypt( cry.encrypt( data, key, iv ), key, iv ) ) );
+    }
+
+    @Test( expected = CryptoException.class )
+    public void testUnknownAlgorithm()
+            throws CryptoException {
+        new SecureRandomPool( "NoSuchPRNG" );
+    }
+}
@@ -0,0 +1,127 @@
+package org.cujau.crypto;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Simple latency benchmarks for {@link SymmetricCrypto}. This is not a unit test, run the
+ * <tt>main</tt> method with the test classpath, e.g.
+ * 
+ * <pre>
+ * java -cp target/classes:target/test-classes:... org.cujau.crypto.SymmetricCryptoBenchmark
+ * </pre>
+ */
+public class SymmetricCryptoBenchmark {
+
+    private static final int PAYLOAD_SIZE = 1024;
+    private static final int WARMUP_ITERATIONS = 200000;
+    private static final int ITERATIONS = 500000;
+
+    private final SymmetricCrypto cry;
+    private final SecretKey key;
+    private final IvParameterSpec iv;
+    private final byte[] payload;
+    private final Mac mac;
+    private final SymmetricCrypto reservoirCry;
+
+    public SymmetricCryptoBenchmark()
+            throws Exception {
+        cry = new SymmetricCrypto();
+        key = cry.getRandomKey();
+        iv = cry.getRandomIV();
+        payload = new byte[PAYLOAD_SIZE];
+        mac = Mac.getInstance( "HmacSHA256" );
+        mac.init( new SecretKeySpec( cry.getRandomSalt(), "HmacSHA256" ) );
+        reservoirCry = new SymmetricCrypto( cry.getSecureRandomPool() );
+        reservoirCry.setRandomReservoir( new RandomReservoir( cry.getSecureRandomPool(), 64 * 1024, 16 * 1024 ) );
+    }
+
+    private abstract static class Op {
+
+        private final String name;
+
+        Op( String name ) {
+            this.name = name;
+        }
+
+        abstract long run()
+                throws Exception;
+    }
+
+    private Op[] ops() {
+        return new Op[] {
+            // Encrypt with a new cipher per call, as encrypt() used to do.
+            new Op( "newCipherPerCall" ) {
+                long run()
+                        throws Exception {
+                    return cry.createAndInitCipher( Cipher.ENCRYPT_MODE, key, iv ).doFinal( payload ).length;
+                }
+            },
+            // Encrypt with the per thread cipher.
+            new Op( "threadCipher" ) {
+                long run()
+                        throws Exception {
+                    return cry.encrypt( payload, key, iv ).length;
+                }
+            },
+            // Encrypt with AES-CBC, then a separate HMAC pass over the encrypted data. A new IV per
+            // call, like the GCM op below, so that both pay for the random generator.
+            new Op( "cbcHmacSha256" ) {
+                long run()
+                        throws Exception {
+                    byte[] encData = cry.encrypt( payload, key, cry.getRandomIV() );
+                    return encData.length + mac.doFinal( encData ).length;
+                }
+            },
+            // Encrypt and authenticate in a single AES-GCM pass. A new IV per call, as GCM requires.
+            new Op( "gcm" ) {
+                long run()
+                        throws Exception {
+                    GCMParameterSpec params = cry.getRandomGcmParameters( SymmetricCrypto.GCM_TAG_BITS );
+                    return cry.encryptGcm( payload, null, key, params ).length;
+                }
+            },
+            // Draw an IV from the random generator.
+            new Op( "randomIV" ) {
+                long run() {
+                    return cry.getRandomIV().getIV()[0];
+                }
+            },
+            // Draw an IV from the background filled reservoir.
+            new Op( "reservoirIV" ) {
+                long run() {
+                    return reservoirCry.getRandomIV().getIV()[0];
+                }
+            } };
+    }
+
+    private static void measure( Op op )
+            throws Exception {
+        long sink = 0;
+        for ( int i = 0; i < WARMUP_ITERATIONS; i++ ) {
+            sink += op.run();
+        }
+        long start = System.nanoTime();
+        for ( int i = 0; i < ITERATIONS; i++ ) {
+            sink += op.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf( "%-24s %8.0f ns/op  (%d byte payload, sink %d)%n", op.name, (double) elapsed / ITERATIONS,
+                           PAYLOAD_SIZE, sink );
+    }
+
+    public static void main( String[] args )
+            throws Exception {
+        SymmetricCryptoBenchmark benchmark = new SymmetricCryptoBenchmark();
+        for ( Op op : benchmark.ops() ) {
+            measure( op );
+        }
+        RandomReservoir reservoir = benchmark.reservoirCry.getRandomReservoir();
+        System.out.printf( "reservoir: served %d, stalls %d, refills %d%n", reservoir.getServed(),
+                           reservoir.getStalls(), reservoir.getRefills() );
+    }
+}
@@ -1,14 +1,33 @@
 package org.cujau.crypto;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
 
 import org.cujau.utils.Base64;
@@ -144,4 +163,418 @@ public class SymmetricCryptoTest {
         String str2 = new String( deStr, "UTF-8" );
         assertTrue( bigStr.equals( str2 ) );
     }
+
+    @Test
+    public void testStreamEncryptDecrypt()
+            throws IOException, CryptoException {
+        // Several copies of the big text so that the data spans more than one buffer.
+        String bigStr = ResourceUtil.getResourceAsString( "/testBigText.txt" );
+        byte[] strB = ( bigStr + bigStr + bigStr ).getBytes( "UTF-8" );
+        assertTrue( strB.length > SymmetricCrypto.STREAM_BUFFER_SIZE );
+
+        SecretKey key = cry.getRandomKey();
+        IvParameterSpec iv = cry.getRandomIV();
+
+        ByteArrayOutputStream encOut = new ByteArrayOutputStream();
+        long encLen = cry.encrypt( new ByteArrayInputStream( strB ), encOut, key, iv );
+        byte[] encStr = encOut.toByteArray();
+        assertTrue( encLen == encStr.length );
+        // The stream and the byte[] methods must produce the same output.
+        assertArrayEquals( cry.encrypt( strB, key, iv ), encStr );
+
+        ByteArrayOutputStream decOut = new ByteArrayOutputStream();
+        long decLen = cry.decrypt( new ByteArrayInputStream( encStr ), decOut, key, iv );
+        assertTrue( decLen == strB.length );
+        assertArrayEquals( strB, decOut.toByteArray() );
+
+        // Empty input still produces one padding block.
+        encOut = new ByteArrayOutputStream();
+        cry.encrypt( new ByteArrayInputStream( new byte[0] ), encOut, key, iv );
+        assertTrue( encOut.size() == 16 );
+    }
+
+    @Test
+    public void testByteBufferEncryptDecrypt()
+            throws IOException, CryptoException {
+        String bigStr = ResourceUtil.getResourceAsString( "/testBigText.txt" );
+        byte[] strB = bigStr.getBytes( "UTF-8" );
+
+        SecretKey key = cry.getRandomKey();
+        IvParameterSpec iv = cry.getRandomIV();
+
+        ByteBuffer src = ByteBuffer.allocateDirect( strB.length );
+        src.put( strB ).flip();
+        int encSize = cry.getOutputSize( Cipher.ENCRYPT_MODE, src.remaining() );
+        ByteBuffer enc = ByteBuffer.allocateDirect( encSize );
+        int encLen = cry.encrypt( src, enc, key, iv );
+        assertTrue( encLen == encSize );
+        assertFalse( src.hasRemaining() );
+        enc.flip();
+
+        byte[] encStr = new byte[encLen];
+        enc.duplicate().get( encStr );
+        assertArrayEquals( cry.encrypt( strB, key, iv ), encStr );
+
+        ByteBuffer dec = ByteBuffer.allocateDirect( cry.getOutputSize( Cipher.DECRYPT_MODE, enc.remaining() ) );
+        int decLen = cry.decrypt( enc, dec, key, iv );
+        assertTrue( decLen == strB.length );
+        dec.flip();
+        byte[] deStr = new byte[decLen];
+        dec.get( deStr );
+        assertArrayEquals( strB, deStr );
+    }
+
+    @Test
+    public void testOutputSize() {
+        assertTrue( cry.getOutputSize( Cipher.ENCRYPT_MODE, 0 ) == 16 );
+        assertTrue( cry.getOutputSize( Cipher.ENCRYPT_MODE, 26 ) == 32 );
+        assertTrue( cry.getOutputSize( Cipher.ENCRYPT_MODE, 32 ) == 48 );
+        assertTrue( cry.getOutputSize( Cipher.DECRYPT_MODE, 32 ) == 32 );
+    }
+
+    @Test
+    public void testGcmEncryptDecrypt()
+            throws IOException, CryptoException {
+        byte[] data = ResourceUtil.getResourceAsString( "/testBigText.txt" ).getBytes( "UTF-8" );
+        byte[] aad = "header".getBytes( "UTF-8" );
+        SecretKey key = cry.getRandomKey();
+
+        int[] tagBits = { 128, 96 };
+        for ( int bits : tagBits ) {
+            GCMParameterSpec params = cry.getRandomGcmParameters( bits );
+            assertTrue( params.getIV().length == 12 );
+            byte[] encData = cry.encryptGcm( data, aad, key, params );
+            assertTrue( encData.length == data.length + bits / 8 );
+            assertArrayEquals( data, cry.decryptGcm( encData, aad, key, params ) );
+
+            ByteArrayOutputStream decOut = new ByteArrayOutputStream();
+            cry.decryptGcm( new ByteArrayInputStream( encData ), decOut, aad, key, params );
+            assertArrayEquals( data, decOut.toByteArray() );
+
+            ByteBuffer dst = ByteBuffer.allocateDirect( data.length );
+            cry.decryptGcm( ByteBuffer.wrap( encData ), dst, aad, key, params );
+            assertTrue( dst.position() == data.length );
+        }
+
+        // The streamed output is the same.
+        GCMParameterSpec params = cry.getRandomGcmParameters( SymmetricCrypto.GCM_TAG_BITS );
+        ByteArrayOutputStream encOut = new ByteArrayOutputStream();
+        cry.encryptGcm( new ByteArrayInputStream( data ), encOut, aad, key, params );
+        assertArrayEquals( data, cry.decryptGcm( encOut.toByteArray(), aad, key, params ) );
+    }
+
+    @Test
+    public void testGcmTampered()
+            throws UnsupportedEncodingException, CryptoException {
+        byte[] data = "abcdefghijklmnopqrstuvwxyz".getBytes( "UTF-8" );
+        byte[] aad = "header".getBytes( "UTF-8" );
+        SecretKey key = cry.getRandomKey();
+        GCMParameterSpec params = cry.getRandomGcmParameters( SymmetricCrypto.GCM_TAG_BITS );
+        byte[] encData = cry.encryptGcm( data, aad, key, params );
+
+        byte[] modified = encData.clone();
+        modified[3] ^= 1;
+        assertFalse( decryptsGcm( modified, aad, key, params ) );
+        assertFalse( decryptsGcm( encData, "HEADER".getBytes( "UTF-8" ), key, params ) );
+        assertFalse( decryptsGcm( encData, null, key, params ) );
+        assertTrue( decryptsGcm( encData, aad, key, params ) );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testGcmInvalidTagLength() {
+        cry.getRandomGcmParameters( 64 );
+    }
+
+    @Test
+    public void testCtrDecryptRange()
+            throws IOException, CryptoException {
+        byte[] data = ResourceUtil.getResourceAsString( "/testBigText.txt" ).getBytes( "UTF-8" );
+        SecretKey key = cry.getRandomKey();
+        IvParameterSpec iv = cry.getRandomIV();
+
+        byte[] encData = cry.encryptCtr( data, key, iv );
+        assertTrue( encData.length == data.length );
+        assertArrayEquals( data, cry.decryptCtr( encData, key, iv ) );
+
+        int[][] ranges = { { 0, 0 }, { 0, 10 }, { 5, 11 }, { 16, 16 }, { 31, 2 }, { 1000, 4000 },
+            { data.length - 7, 7 } };
+        for ( int[] range : ranges ) {
+            byte[] expected = Arrays.copyOfRange( data, range[0], range[0] + range[1] );
+            assertArrayEquals( expected, cry.decryptRange( encData, range[0], range[1], key, iv ) );
+        }
+
+        Path encFile = Files.createTempFile( "cujau-crypto", ".ctr" );
+        try {
+            ByteArrayOutputStream encOut = new ByteArrayOutputStream();
+            cry.encryptCtr( new ByteArrayInputStream( data ), encOut, key, iv );
+            assertArrayEquals( encData, encOut.toByteArray() );
+            Files.write( encFile, encOut.toByteArray() );
+
+            try ( FileChannel channel = FileChannel.open( encFile, StandardOpenOption.READ ) ) {
+                for ( int[] range : ranges ) {
+                    byte[] expected = Arrays.copyOfRange( data, range[0], range[0] + range[1] );
+                    assertArrayEquals( expected, cry.decryptRange( channel, range[0], range[1], key, iv ) );
+                }
+            }
+        } finally {
+            Files.delete( encFile );
+        }
+    }
+
+    @Test
+    public void testCtrCounterCarry()
+            throws CryptoException {
+        // A counter that overflows its lower bytes within the data.
+        byte[] ivBytes = new byte[16];
+        Arrays.fill( ivBytes, 8, 16, (byte) 0xFF );
+        IvParameterSpec iv = new IvParameterSpec( ivBytes );
+        SecretKey key = cry.getRandomKey();
+
+        byte[] data = new byte[16 * 10];
+        byte[] encData = cry.encryptCtr( data, key, iv );
+        assertArrayEquals( Arrays.copyOfRange( data, 50, 120 ), cry.decryptRange( encData, 50, 70, key, iv ) );
+
+        byte[] counter = SymmetricCrypto.getCounterBlock( iv, 2 ).getIV();
+        assertTrue( counter[7] == 1 && counter[15] == 1 && counter[8] == 0 );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testCtrInvalidRange()
+            throws CryptoException {
+        SecretKey key = cry.getRandomKey();
+        IvParameterSpec iv = cry.getRandomIV();
+        cry.decryptRange( cry.encryptCtr( new byte[100], key, iv ), 90, 11, key, iv );
+    }
+
+    @Test
+    public void testKeyFromPassword()
+            throws Exception {
+        byte[] salt = cry.getRandomSalt();
+        SecretKey key = cry.getKeyFromPasswordAndSalt( "secret", salt );
+        assertTrue( key.getAlgorithm().equals( "AES" ) );
+        assertTrue( key.getEncoded().length == 16 );
+
+        // The defaults derive the same keys as before.
+        PBEKeySpec spec = new PBEKeySpec( "secret".toCharArray(), salt, 1000, 128 );
+        byte[] expected = SecretKeyFactory.getInstance( "PBKDF2WithHmacSHA1" ).generateSecret( spec ).getEncoded();
+        assertArrayEquals( expected, key.getEncoded() );
+
+        assertFalse( Arrays.equals( key.getEncoded(), cry.getKeyFromPasswordAndSalt( "secret", salt, 2000 ).getEncoded() ) );
+        cry.setPasswordKeyDerivation( "HmacSHA256", 1000 );
+        assertFalse( Arrays.equals( key.getEncoded(), cry.getKeyFromPasswordAndSalt( "secret", salt ).getEncoded() ) );
+    }
+
+    @Test
+    public void testDerivedKeyCache()
+            throws CryptoException {
+        DerivedKeyCache cache = new DerivedKeyCache( 2, 60000 );
+        cry.setDerivedKeyCache( cache );
+        byte[] salt = cry.getRandomSalt();
+
+        SecretKey key = cry.getKeyFromPasswordAndSalt( "secret", salt );
+        assertArrayEquals( key.getEncoded(), cry.getKeyFromPasswordAndSalt( "secret", salt ).getEncoded() );
+        assertTrue( cache.getHits() == 1 );
+        assertTrue( cache.getMisses() == 1 );
+
+        // Every parameter is part of the lookup.
+        cry.getKeyFromPasswordAndSalt( "Secret", salt );
+        cry.getKeyFromPasswordAndSalt( "secret", cry.getRandomSalt() );
+        cry.getKeyFromPasswordAndSalt( "secret", salt, 1001 );
+        assertTrue( cache.getHits() == 1 );
+        assertTrue( cache.getEvictions() == 2 );
+        assertTrue( cache.size() == 2 );
+
+        cry.setDerivedKeyCache( null );
+        assertArrayEquals( key.getEncoded(), cry.getKeyFromPasswordAndSalt( "secret", salt ).getEncoded() );
+    }
+
+    @Test
+    public void testDerivedKeyCacheConcurrentEviction()
+            throws Exception {
+        // A single entry, so that every put evicts the key the readers are looking up.
+        final DerivedKeyCache cache = new DerivedKeyCache( 1, 60000 );
+        final ByteBuffer digest = cache.digest( "HmacSHA256", 1000, "secret".toCharArray(), new byte[16] );
+        final ByteBuffer otherDigest = cache.digest( "HmacSHA256", 1000, "other".toCharArray(), new byte[16] );
+        final byte[] key = new byte[32];
+        Arrays.fill( key, (byte) 0x5A );
+        ExecutorService exec = Executors.newFixedThreadPool( 3 );
+        try {
+            List<Future<Integer>> readers = new ArrayList<Future<Integer>>();
+            for ( int t = 0; t < 2; t++ ) {
+                readers.add( exec.submit( new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        int corrupted = 0;
+                        for ( int i = 0; i < 200000; i++ ) {
+                            byte[] found = cache.get( digest );
+                            if ( found != null && !Arrays.equals( key, found ) ) {
+                                corrupted++;
+                            }
+                        }
+                        return corrupted;
+                    }
+                } ) );
+            }
+            Future<?> writer = exec.submit( new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for ( int i = 0; i < 200000; i++ ) {
+                        cache.put( digest, key );
+                        cache.put( otherDigest, key );
+                    }
+                    return null;
+                }
+            } );
+            writer.get();
+            for ( Future<Integer> reader : readers ) {
+                assertTrue( reader.get() == 0 );
+            }
+            assertTrue( cache.getEvictions() > 0 );
+        } finally {
+            exec.shutdown();
+        }
+    }
+
+    @Test
+    public void testClearThreadCiphers()
+            throws CryptoException {
+        SecretKey key = cry.getRandomKey();
+        IvParameterSpec iv = cry.getRandomIV();
+        GCMParameterSpec params = cry.getRandomGcmParameters( SymmetricCrypto.GCM_TAG_BITS );
+        byte[] data = "abcdefghijklmnopqrstuvwxyz".getBytes();
+        byte[] encData = cry.encrypt( data, key, iv );
+        byte[] encGcm = cry.encryptGcm( data, null, key, params );
+        byte[] encCtr = cry.encryptCtr( data, key, iv );
+
+        // New ciphers after clearing work the same.
+        SymmetricCrypto.clearThreadCiphers();
+        assertArrayEquals( data, cry.decrypt( encData, key, iv ) );
+        SymmetricCrypto.clearThreadCiphers();
+        assertArrayEquals( data, cry.decryptGcm( encGcm, null, key, params ) );
+        SymmetricCrypto.clearThreadCiphers();
+        assertArrayEquals( data, cry.decryptCtr( encCtr, key, iv ) );
+    }
+
+    @Test
+    public void testPasswordSalt()
+            throws CryptoException {
+        cry.setPasswordKeyDerivation( SymmetricCrypto.DEFAULT_PBKDF2_PRF, 3000 );
+        PasswordSalt salt = cry.getRandomPasswordSalt();
+        assertTrue( salt.getIterations() == 3000 );
+
+        PasswordSalt read = PasswordSalt.fromBytes( salt.toBytes() );
+        assertTrue( salt.equals( read ) );
+
+        // Another machine with another configuration derives the same key.
+        SymmetricCrypto other = new SymmetricCrypto();
+        assertArrayEquals( cry.getKeyFromPassword( "secret", salt ).getEncoded(),
+                           other.getKeyFromPassword( "secret", read ).getEncoded() );
+        assertArrayEquals( cry.getKeyFromPasswordAndSalt( "secret", salt.getSalt() ).getEncoded(),
+                           other.getKeyFromPassword( "secret", read ).getEncoded() );
+    }
+
+    @Test
+    public void testPasswordSaltKeepsPrf()
+            throws CryptoException {
+        cry.setPasswordKeyDerivation( "HmacSHA256", 2000 );
+        PasswordSalt salt = cry.getRandomPasswordSalt();
+        PasswordSalt read = PasswordSalt.fromBytes( salt.toBytes() );
+        assertTrue( "HmacSHA256".equals( read.getPrf() ) );
+
+        // A machine configured with another PRF still derives the key with the PRF of the salt.
+        SymmetricCrypto other = new SymmetricCrypto();
+        other.setPasswordKeyDerivation( "HmacSHA1", 2000 );
+        byte[] expected = cry.getKeyFromPasswordAndSalt( "secret", salt.getSalt(), 2000 ).getEncoded();
+        assertArrayEquals( expected, other.getKeyFromPassword( "secret", read ).getEncoded() );
+        // Which is not the key of its own PRF, even with the same cached salt.
+        assertFalse( Arrays.equals( expected,
+                                    other.getKeyFromPasswordAndSalt( "secret", salt.getSalt(), 2000 ).getEncoded() ) );
+        assertArrayEquals( expected, other.getKeyFromPassword( "secret", read ).getEncoded() );
+
+        PasswordSalt sha1 = new PasswordSalt( salt.getSalt(), "HmacSHA1", 2000 );
+        assertFalse( salt.equals( sha1 ) );
+    }
+
+    @Test
+    public void testCalibratePbkdf2()
+            throws CryptoException {
+        int iterations = cry.calibratePbkdf2Iterations( "HmacSHA256", 20 );
+        LOG.debug( "iterations={}", iterations );
+        assertTrue( iterations >= SymmetricCrypto.DEFAULT_PBKDF2_ITERATIONS );
+        assertTrue( iterations % SymmetricCrypto.PBKDF2_CALIBRATION_STEP == 0 );
+    }
+
+    @Test( expected = CryptoException.class )
+    public void testUnknownPrf()
+            throws CryptoException {
+        cry.setPasswordKeyDerivation( "HmacNothing", 1000 );
+    }
+
+    @Test
+    public void testFileEncryptDecrypt()
+            throws IOException, CryptoException {
+        String bigStr = ResourceUtil.getResourceAsString( "/testBigText.txt" );
+        byte[] strB = bigStr.getBytes( "UTF-8" );
+
+        SecretKey key = cry.getRandomKey();
+        IvParameterSpec iv = cry.getRandomIV();
+
+        Path plainFile = Files.createTempFile( "cujau-crypto", ".txt" );
+        Path encFile = Files.createTempFile( "cujau-crypto", ".enc" );
+        Path decFile = Files.createTempFile( "cujau-crypto", ".dec" );
+        try {
+            Files.write( plainFile, strB );
+            long encLen = cry.encryptFile( plainFile, encFile, key, iv );
+            assertTrue( encLen == Files.size( encFile ) );
+            assertArrayEquals( cry.encrypt( strB, key, iv ), Files.readAllBytes( encFile ) );
+
+            long decLen = cry.decryptFile( encFile, decFile, key, iv );
+            assertTrue( decLen == strB.length );
+            assertArrayEquals( strB, Files.readAllBytes( decFile ) );
+        } finally {
+            Files.delete( plainFile );
+            Files.delete( encFile );
+            Files.delete( decFile );
+        }
+    }
+
+    @Test
+    public void testConcurrentEncryptDecrypt()
+            throws Exception {
+        final String str = "abcdefghijklmnopqrstuvwxyz";
+        ExecutorService executor = Executors.newFixedThreadPool( 8 );
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for ( int i = 0; i < 64; i++ ) {
+                results.add( executor.submit( new Callable<Boolean>() {
+                    public Boolean call()
+                            throws Exception {
+                        for ( int j = 0; j < 100; j++ ) {
+                            SecretKey key = cry.getRandomKey();
+                            IvParameterSpec iv = cry.getRandomIV();
+                            byte[] encStr = cry.encrypt( str.getBytes( "UTF-8" ), key, iv );
+                            if ( !str.equals( new String( cry.decrypt( encStr, key, iv ), "UTF-8" ) ) ) {
+                                return false;
+                            }
+                        }
+                        return true;
+                    }
+                } ) );
+            }
+            for ( Future<Boolean> result : results ) {
+                assertTrue( result.get() );
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private boolean decryptsGcm( byte[] encData, byte[] aad, SecretKey key, GCMParameterSpec params ) {
+        try {
+            cry.decryptGcm( encData, aad, key, params );
+            return true;
+        } catch ( CryptoException e ) {
+            return false;
+        }
+    }
 }
@@ -0,0 +1,120 @@
+package org.cujau.crypto;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TreeHashTest {
+
+    private static final int LEAF_BYTES = 1000;
+
+    private Path file;
+    private byte[] data;
+
+    @Before
+    public void setUp()
+            throws IOException {
+        // Not a multiple of the leaf size, so the last leaf is short.
+        data = new byte[10 * LEAF_BYTES + 17];
+        for ( int i = 0; i < data.length; i++ ) {
+            data[i] = (byte) ( i * 31 );
+        }
+        file = Files.createTempFile( "treehash", ".bin" );
+        Files.write( file, data );
+    }
+
+    @After
+    public void tearDown()
+            throws IOException {
+        Files.delete( file );
+    }
+
+    @Test
+    public void testHash()
+            throws Exception {
+        TreeHash th = new TreeHash( "SHA-256", LEAF_BYTES, new ForkJoinPool( 4 ) );
+        TreeHash.Manifest manifest = th.hash( file );
+        assertTrue( manifest.getLeafCount() == 11 );
+        assertTrue( manifest.getFileSize() == data.length );
+
+        MessageDigest md = MessageDigest.getInstance( "SHA-256" );
+        assertArrayEquals( md.digest( Arrays.copyOfRange( data, 10 * LEAF_BYTES, data.length ) ),
+                           manifest.getLeaf( 10 ) );
+        for ( int i = 0; i < manifest.getLeafCount(); i++ ) {
+            md.update( manifest.getLeaf( i ) );
+        }
+        assertArrayEquals( md.digest(), manifest.getRoot() );
+
+        // The same root whatever the pool.
+        assertArrayEquals( manifest.getRoot(),
+                           new TreeHash( "SHA-256", LEAF_BYTES, new ForkJoinPool( 1 ) ).hash( file ).getRoot() );
+        assertFalse( Arrays.equals( manifest.getRoot(),
+                                    new TreeHash( "MD5", LEAF_BYTES, new ForkJoinPool( 2 ) ).hash( file ).getRoot() ) );
+    }
+
+    @Test
+    public void testVerify()
+            throws Exception {
+        TreeHash th = new TreeHash( "MD5", LEAF_BYTES, new ForkJoinPool( 4 ) );
+        TreeHash.Manifest manifest = TreeHash.Manifest.fromBytes( th.hash( file ).toBytes() );
+        assertTrue( th.verify( file, manifest ).isEmpty() );
+
+        data[3 * LEAF_BYTES + 5]++;
+        data[data.length - 1]++;
+        Files.write( file, data );
+        assertTrue( th.verify( file, manifest ).equals( Arrays.asList( 3, 10 ) ) );
+        // Only the suspect leaves are checked.
+        assertTrue( th.verify( file, manifest, Arrays.asList( 0, 10 ) ).equals( Arrays.asList( 10 ) ) );
+
+        // A different size fails every checked leaf.
+        Files.write( file, Arrays.copyOf( data, data.length - 1 ) );
+        assertTrue( th.verify( file, manifest, Arrays.asList( 0, 1 ) ).equals( Arrays.asList( 0, 1 ) ) );
+    }
+
+    @Test
+    public void testEmptyFile()
+            throws Exception {
+        Files.write( file, new byte[0] );
+        TreeHash.Manifest manifest = new TreeHash( "MD5" ).hash( file );
+        assertTrue( manifest.getLeafCount() == 0 );
+        assertTrue( manifest.equals( TreeHash.Manifest.fromBytes( manifest.toBytes() ) ) );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testTooManyLeaves()
+            throws IOException, CryptoException {
+        // A sparse file with more single byte leaves than an int can count.
+        RandomAccessFile raf = new RandomAccessFile( file.toFile(), "rw" );
+        try {
+            raf.setLength( Integer.MAX_VALUE + 10L );
+        } finally {
+            raf.close();
+        }
+        new TreeHash( "MD5", 1, ForkJoinPool.commonPool() ).hash( file );
+    }
+
+    @Test( expected = CryptoException.class )
+    public void testUnknownAlgorithm()
+            throws CryptoException {
+        new TreeHash( "NoSuchDigest" );
+    }
+
+    @Test( expected = CryptoException.class )
+    public void testManifestTooShort()
+            throws Exception {
+        byte[] bytes = new TreeHash( "MD5", LEAF_BYTES, ForkJoinPool.commonPool() ).hash( file ).toBytes();
+        TreeHash.Manifest.fromBytes( Arrays.copyOf( bytes, bytes.length - 1 ) );
+    }
+}